@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sort more items than fit in the heap. Items are collected in runs of a fixed size, each
+ * full run is sorted and spilled to a temporary file. Reading the result merges the runs.
+ * @param <T> the item type
+ */
+public final class ExternalSorter<T> {
+
+    /** default number of items kept in memory. */
+    public static final int DEFAULT_RUN_SIZE = 50000;
+
+    /**
+     * Write and read items to and from the run files.
+     * @param <T> the item type
+     */
+    public interface Codec<T> {
+        /**
+         * Write an item.
+         * @param out the output
+         * @param item the item
+         * @throws IOException when writing fails
+         */
+        void write(DataOutput out, T item) throws IOException;
+
+        /**
+         * Read an item.
+         * @param in the input
+         * @return the item
+         * @throws IOException when reading fails, EOFException at the end of the run
+         */
+        T read(DataInput in) throws IOException;
+    }
+
+    private final Comparator<T> comparator;
+    private final Codec<T> codec;
+    private final int runSize;
+    private final List<T> buffer;
+    private final List<File> runs = new ArrayList<File>();
+    private final List<DataInputStream> readers = new ArrayList<DataInputStream>();
+    private PriorityQueue<Head> heads;
+    private int bufferPos;
+    private long count;
+
+    /**
+     * Create a sorter.
+     * @param comparator the sort order
+     * @param codec the codec for the run files
+     * @param runSize the number of items kept in memory
+     */
+    public ExternalSorter(final Comparator<T> comparator, final Codec<T> codec, final int runSize) {
+        this.comparator = comparator;
+        this.codec = codec;
+        this.runSize = Math.max(1, runSize);
+        this.buffer = new ArrayList<T>(Math.min(this.runSize, 1024));
+    }
+
+    /**
+     * Add an item.
+     * @param item the item
+     * @throws IOException when spilling a run fails
+     */
+    public void add(final T item) throws IOException {
+        buffer.add(item);
+        count++;
+        if (buffer.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Get the number of added items.
+     * @return the number of items
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of runs spilled to disk.
+     * @return the number of runs
+     */
+    public int getRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Get the next item in sort order. The first call finishes the input.
+     * @return the next item or null when all items are read
+     * @throws IOException when reading a run fails
+     */
+    public T next() throws IOException {
+        if (heads == null) {
+            finish();
+        }
+        if (runs.isEmpty()) {
+            // everything fitted in memory
+            return (bufferPos < buffer.size()) ? buffer.get(bufferPos++) : null;
+        }
+        Head head = heads.poll();
+        if (head == null) {
+            return null;
+        }
+        T item = head.item;
+        advance(head);
+        return item;
+    }
+
+    /**
+     * Delete the run files.
+     */
+    public void close() {
+        for (DataInputStream in : readers) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        for (File run : runs) {
+            if (!run.delete()) {
+                run.deleteOnExit();
+            }
+        }
+        readers.clear();
+        runs.clear();
+        buffer.clear();
+    }
+
+    private void finish() throws IOException {
+        heads = new PriorityQueue<Head>(Math.max(1, runs.size() + 1), new Comparator<Head>() {
+            public int compare(final Head h1, final Head h2) {
+                return comparator.compare(h1.item, h2.item);
+            }
+        });
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        for (File run : runs) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            readers.add(in);
+            advance(new Head(in));
+        }
+    }
+
+    private void advance(final Head head) throws IOException {
+        try {
+            head.item = codec.read(head.in);
+            heads.add(head);
+        } catch (EOFException e) {
+            head.in.close();
+        }
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, comparator);
+        File run = File.createTempFile("jcr-shell-sort", ".run");
+        run.deleteOnExit();
+        runs.add(run);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (T item : buffer) {
+                codec.write(out, item);
+            }
+        } finally {
+            out.close();
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Current item of a run.
+     */
+    private final class Head {
+        private final DataInputStream in;
+        private T item;
+
+        private Head(final DataInputStream in) {
+            this.in = in;
+        }
+    }
+}
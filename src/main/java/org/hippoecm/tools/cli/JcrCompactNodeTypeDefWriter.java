@@ -24,7 +24,7 @@ import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.jcr.nodetype.NodeDefinition;
-import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeDefinition;
 import javax.jcr.nodetype.PropertyDefinition;
 import javax.jcr.version.OnParentVersionAction;
 
@@ -41,7 +41,7 @@ public class JcrCompactNodeTypeDefWriter {
         this.out = out;
     }
 
-    public void printNodeTypeDef(NodeType nt) throws IOException {
+    public void printNodeTypeDef(NodeTypeDefinition nt) throws IOException {
         writeName(nt);
         writeSupertypes(nt);
         writeOptions(nt);
@@ -51,23 +51,23 @@ public class JcrCompactNodeTypeDefWriter {
         out.flush();
     }
 
-    private void writeName(NodeType nt) throws IOException {
+    private void writeName(NodeTypeDefinition nt) throws IOException {
         out.write("[");
         out.write(resolve(nt.getName()));
         out.write("]");
     }
 
-    private void writeSupertypes(NodeType nt) throws IOException {
-        NodeType[] superTypes = nt.getDeclaredSupertypes();
+    private void writeSupertypes(NodeTypeDefinition nt) throws IOException {
+        String[] superTypes = nt.getDeclaredSupertypeNames();
         String delim = " > ";
-        for (NodeType sn : superTypes) {
+        for (String sn : superTypes) {
             out.write(delim);
-            out.write(resolve(sn.getName()));
+            out.write(resolve(sn));
             delim = ", ";
         }
     }
 
-    private void writeOptions(NodeType nt) throws IOException {
+    private void writeOptions(NodeTypeDefinition nt) throws IOException {
         if (nt.hasOrderableChildNodes()) {
             out.write("\n" + INDENT);
             out.write("orderable");
@@ -80,14 +80,14 @@ public class JcrCompactNodeTypeDefWriter {
         }
     }
 
-    private void writePropDefs(NodeType nt) throws IOException {
+    private void writePropDefs(NodeTypeDefinition nt) throws IOException {
         PropertyDefinition[] propdefs = nt.getDeclaredPropertyDefinitions();
         for (PropertyDefinition propdef : propdefs) {
             writePropDef(nt, propdef);
         }
     }
 
-    private void writePropDef(NodeType nt, PropertyDefinition pd) throws IOException {
+    private void writePropDef(NodeTypeDefinition nt, PropertyDefinition pd) throws IOException {
         out.write("\n" + INDENT + "- ");
         writeItemDefName(pd.getName());
         out.write(" (");
@@ -115,14 +115,14 @@ public class JcrCompactNodeTypeDefWriter {
         writeValueConstraints(pd.getValueConstraints());
     }
 
-    private void writeNodeDefs(NodeType nt) throws IOException {
+    private void writeNodeDefs(NodeTypeDefinition nt) throws IOException {
         NodeDefinition[] childnodeDefs = nt.getDeclaredChildNodeDefinitions();
         for (NodeDefinition childnodeDef : childnodeDefs) {
             writeNodeDef(nt, childnodeDef);
         }
     }
 
-    private void writeNodeDef(NodeType nt, NodeDefinition nd) throws IOException {
+    private void writeNodeDef(NodeTypeDefinition nt, NodeDefinition nd) throws IOException {
         out.write("\n" + INDENT + "+ ");
 
         String name = nd.getName();
@@ -131,8 +131,8 @@ public class JcrCompactNodeTypeDefWriter {
         } else {
             writeItemDefName(name);
         }
-        writeRequiredTypes(nd.getRequiredPrimaryTypes());
-        writeDefaultType(nd.getDefaultPrimaryType());
+        writeRequiredTypes(nd.getRequiredPrimaryTypeNames());
+        writeDefaultType(nd.getDefaultPrimaryTypeName());
         out.write(nt.getPrimaryItemName() != null && nt.getPrimaryItemName().equals(nd.getName()) ? " primary" : "");
         if (nd.isMandatory()) {
             out.write(" mandatory");
@@ -152,12 +152,12 @@ public class JcrCompactNodeTypeDefWriter {
         }
     }
 
-    private void writeRequiredTypes(NodeType[] reqTypes) throws IOException {
+    private void writeRequiredTypes(String[] reqTypes) throws IOException {
         if (reqTypes != null && reqTypes.length > 0) {
             String delim = " (";
             for (int i = 0; i < reqTypes.length; i++) {
                 out.write(delim);
-                out.write(resolve(reqTypes[i].getName()));
+                out.write(resolve(reqTypes[i]));
                 delim = ", ";
             }
             out.write(")");
@@ -168,10 +168,10 @@ public class JcrCompactNodeTypeDefWriter {
      * write default types
      * @param defType
      */
-    private void writeDefaultType(NodeType defType) throws IOException {
-        if (defType != null && !defType.getName().equals("*")) {
+    private void writeDefaultType(String defType) throws IOException {
+        if (defType != null && !defType.equals("*")) {
             out.write(" = ");
-            out.write(resolve(defType.getName()));
+            out.write(resolve(defType));
         }
     }
 
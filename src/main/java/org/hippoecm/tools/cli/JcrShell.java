@@ -26,26 +26,34 @@ public final class JcrShell {
 
     /** the commands. */
     private static final String[] COMMAND_CLASSES = new String[] { "org.hippoecm.tools.cli.commands.Aliases",
-            "org.hippoecm.tools.cli.commands.Cd",
+            "org.hippoecm.tools.cli.commands.AnalyzeShape", "org.hippoecm.tools.cli.commands.AutoSave",
+            "org.hippoecm.tools.cli.commands.BatchRead", "org.hippoecm.tools.cli.commands.Cd",
             "org.hippoecm.tools.cli.commands.CdPrevious", "org.hippoecm.tools.cli.commands.Credentials",
+            "org.hippoecm.tools.cli.commands.Diff", "org.hippoecm.tools.cli.commands.Du",
             "org.hippoecm.tools.cli.commands.Exit",
-            "org.hippoecm.tools.cli.commands.FindReferences", "org.hippoecm.tools.cli.commands.Help",
+            "org.hippoecm.tools.cli.commands.Find", "org.hippoecm.tools.cli.commands.FindReferences",
+            "org.hippoecm.tools.cli.commands.Grep", "org.hippoecm.tools.cli.commands.Hash",
+            "org.hippoecm.tools.cli.commands.Help", "org.hippoecm.tools.cli.commands.InferCnd",
             "org.hippoecm.tools.cli.commands.Login", "org.hippoecm.tools.cli.commands.Logout",
             "org.hippoecm.tools.cli.commands.MixinAdd", "org.hippoecm.tools.cli.commands.MixinList",
             "org.hippoecm.tools.cli.commands.MixinRemove", "org.hippoecm.tools.cli.commands.NamespaceAdd",
             "org.hippoecm.tools.cli.commands.NamespaceList", "org.hippoecm.tools.cli.commands.NamespaceRemove",
             "org.hippoecm.tools.cli.commands.NodeAdd", "org.hippoecm.tools.cli.commands.NodeAllowed",
+            "org.hippoecm.tools.cli.commands.NodeClone", "org.hippoecm.tools.cli.commands.NodeCopy",
             "org.hippoecm.tools.cli.commands.NodeList",
             "org.hippoecm.tools.cli.commands.NodeMove", "org.hippoecm.tools.cli.commands.NodeRemove",
             "org.hippoecm.tools.cli.commands.NodeTree", "org.hippoecm.tools.cli.commands.NodeTypeList",
             "org.hippoecm.tools.cli.commands.NodeTypeGet", "org.hippoecm.tools.cli.commands.PropAdd",
             "org.hippoecm.tools.cli.commands.PropAllowed", "org.hippoecm.tools.cli.commands.PropDelete",
             "org.hippoecm.tools.cli.commands.PropGet", "org.hippoecm.tools.cli.commands.PropList",
-            "org.hippoecm.tools.cli.commands.PropSet", "org.hippoecm.tools.cli.commands.Query",
+            "org.hippoecm.tools.cli.commands.PropSet", "org.hippoecm.tools.cli.commands.PropStats",
+            "org.hippoecm.tools.cli.commands.Query", "org.hippoecm.tools.cli.commands.QueryNext",
             "org.hippoecm.tools.cli.commands.Refresh",
             "org.hippoecm.tools.cli.commands.Reset", "org.hippoecm.tools.cli.commands.Save",
             "org.hippoecm.tools.cli.commands.Server", "org.hippoecm.tools.cli.commands.SessionSave",
-            "org.hippoecm.tools.cli.commands.Status", "org.hippoecm.tools.cli.commands.ValueAdd",
+            "org.hippoecm.tools.cli.commands.Status", "org.hippoecm.tools.cli.commands.Top",
+            "org.hippoecm.tools.cli.commands.TypeStats",
+            "org.hippoecm.tools.cli.commands.ValueAdd",
             "org.hippoecm.tools.cli.commands.ValueRemove" };
 
     /**
@@ -24,6 +24,10 @@ import java.rmi.RemoteException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
@@ -63,10 +67,15 @@ import javax.jcr.observation.ObservationManager;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.jcr.version.VersionException;
 
 import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.jcr2dav.Jcr2davRepositoryFactory;
+import org.apache.jackrabbit.jcr2spi.Jcr2spiRepositoryFactory;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.commons.conversion.PathResolver;
+import org.apache.jackrabbit.spi2davex.BatchReadConfig;
+import org.apache.jackrabbit.spi2davex.Spi2davexRepositoryServiceFactory;
 
 /**
  * Wrapper class for commonly used jcr calls.
@@ -77,6 +86,14 @@ public final class JcrWrapper {
 
     private static Map<String, SortedSet<String>> nodeNameCache = new HashMap<String, SortedSet<String>>();
     private static Map<String, SortedSet<String>> propertyNameCache = new HashMap<String, SortedSet<String>>();
+    private static final int METADATA_CACHE_SIZE = 10000;
+    private static Map<String, NodeMetadata> metadataCache = new LinkedHashMap<String, NodeMetadata>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(final Map.Entry<String, NodeMetadata> eldest) {
+            return size() > METADATA_CACHE_SIZE;
+        }
+    };
     private static Object mutex = new Object();
     private static EventListener cacheListener;
 
@@ -86,8 +103,25 @@ public final class JcrWrapper {
 
     private static char[] password = "admin".toCharArray();
 
+    private static Repository repository;
+
+    private static Repository workerRepository;
+
+    /** query results, invalidated by observation. */
+    private static final QueryCache QUERY_CACHE = new QueryCache();
+
+    /** counts the requests of the sessions created over http. */
+    private static final RemoteCallCounter REMOTE_CALLS = new RemoteCallCounter();
+
+    /** changes since the last save, for auto-save. */
+    private static final PendingChanges PENDING_CHANGES = new PendingChanges();
+
+    private static int batchReadDepth = 4;
+
     private static Session session;
 
+    private static List<Session> workerSessions = new LinkedList<Session>();
+
     private static Node currentNode;
 
     private static Node previousNode;
@@ -154,6 +188,20 @@ public final class JcrWrapper {
         JcrWrapper.server = server;
     }
 
+    public static int getBatchReadDepth() {
+        return batchReadDepth;
+    }
+
+    /**
+     * Set the number of levels the worker sessions fetch from the server in one request when
+     * a node is read. Only used with the http (spi2davex) transport, takes effect for worker
+     * sessions opened after the next login.
+     * @param depth the batch read depth
+     */
+    public static void setBatchReadDepth(final int depth) {
+        JcrWrapper.batchReadDepth = depth;
+    }
+
     public static String getUsername() {
         return username;
     }
@@ -166,13 +214,16 @@ public final class JcrWrapper {
         synchronized (mutex) {
             propertyNameCache.clear();
             nodeNameCache.clear();
+            metadataCache.clear();
         }
+        QUERY_CACHE.clear();
     }
 
     public static void removeFromCache(final String nodePath) {
         synchronized (mutex) {
             propertyNameCache.remove(nodePath);
             nodeNameCache.remove(nodePath);
+            metadataCache.remove(nodePath);
         }
     }
 
@@ -182,6 +233,7 @@ public final class JcrWrapper {
             Event event = events.nextEvent();
             try {
                 String path = event.getPath();
+                QUERY_CACHE.invalidate(path);
                 switch (event.getType()) {
                 case Event.NODE_ADDED:
                 case Event.NODE_REMOVED:
@@ -222,7 +274,7 @@ public final class JcrWrapper {
         // get the repository login and get session
         try {
             System.out.println();
-            Repository repository = JcrUtils.getRepository(getServer());
+            repository = createRepository(getServer(), null);
             session = repository.login(new SimpleCredentials(getUsername(), getPassword()), workspace);
             setConnected(true);
             setCurrentNode(session.getRootNode());
@@ -253,6 +305,11 @@ public final class JcrWrapper {
         if (connect()) {
             try {
                 session.refresh(keepChanges);
+                if (keepChanges) {
+                    PENDING_CHANGES.resume();
+                } else {
+                    PENDING_CHANGES.reset();
+                }
                 clearCaches();
             } catch (RepositoryException e) {
                 e.printStackTrace();
@@ -273,8 +330,13 @@ public final class JcrWrapper {
             } catch (RepositoryException e) {
                 // ignore
             }
+            closeWorkerSessions();
+            synchronized (JcrWrapper.class) {
+                workerRepository = null;
+            }
             session.logout();
             setConnected(false);
+            PENDING_CHANGES.reset();
             clearCaches();
             previousNode = null;
             currentNode = null;
@@ -282,10 +344,150 @@ public final class JcrWrapper {
         }
     }
 
+    /**
+     * Get a session for a worker thread. Worker sessions use the same server, credentials and
+     * workspace as the shell session and are pooled until logout. A pooled session is refreshed
+     * before it is handed out, so it sees everything saved by the shell session.
+     * @return a worker session or null when not connected
+     * @throws RepositoryException when the login fails
+     */
+    public static Session borrowWorkerSession() throws RepositoryException {
+        if (!connect()) {
+            return null;
+        }
+        synchronized (workerSessions) {
+            while (!workerSessions.isEmpty()) {
+                Session worker = workerSessions.remove(0);
+                if (worker.isLive()) {
+                    worker.refresh(false);
+                    return worker;
+                }
+            }
+        }
+        return getWorkerRepository().login(new SimpleCredentials(getUsername(), getPassword()), workspace);
+    }
+
+    /**
+     * Open a new session on another workspace of the current server, with the current
+     * credentials. The caller has to logout the session.
+     * @param workspaceName the workspace, null for the default workspace
+     * @return the session or null when not connected
+     * @throws RepositoryException when the login fails
+     */
+    public static Session openSession(final String workspaceName) throws RepositoryException {
+        if (!connect()) {
+            return null;
+        }
+        return getWorkerRepository().login(new SimpleCredentials(getUsername(), getPassword()), workspaceName);
+    }
+
+    /**
+     * Open a new session on another server, with the current credentials. The caller has
+     * to logout the session.
+     * @param serverUri the repository url
+     * @param workspaceName the workspace, null for the default workspace
+     * @return the session
+     * @throws RepositoryException when the login fails
+     */
+    public static Session openSession(final String serverUri, final String workspaceName)
+            throws RepositoryException {
+        Repository repo = JcrUtils.getRepository(serverUri);
+        return repo.login(new SimpleCredentials(getUsername(), getPassword()), workspaceName);
+    }
+
+    private static synchronized Repository getWorkerRepository() throws RepositoryException {
+        if (workerRepository != null) {
+            return workerRepository;
+        }
+        String uri = getServer();
+        if (!uri.startsWith("http:") && !uri.startsWith("https:")) {
+            return repository;
+        }
+        final int depth = batchReadDepth;
+        workerRepository = createRepository(uri, new BatchReadConfig() {
+            public int getDepth(final Path path, final PathResolver resolver) {
+                return depth;
+            }
+        });
+        return workerRepository;
+    }
+
+    /**
+     * Create a repository. Over http the repository is created with jcr2dav directly, so the
+     * remote calls are counted and an optional batch read configuration is used.
+     * @param uri the server uri
+     * @param batchRead the batch read configuration or null for the default
+     * @return the repository
+     * @throws RepositoryException when the repository is not available
+     */
+    private static Repository createRepository(final String uri, final BatchReadConfig batchRead)
+            throws RepositoryException {
+        if (uri.startsWith("http:") || uri.startsWith("https:")) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put(JcrUtils.REPOSITORY_URI, uri);
+            params.put(Jcr2spiRepositoryFactory.PARAM_LOG_WRITER_PROVIDER, REMOTE_CALLS);
+            if (batchRead != null) {
+                params.put(Spi2davexRepositoryServiceFactory.PARAM_BATCHREAD_CONFIG, batchRead);
+            }
+            Repository repo = new Jcr2davRepositoryFactory().getRepository(params);
+            if (repo != null) {
+                return repo;
+            }
+        }
+        return (batchRead == null) ? JcrUtils.getRepository(uri) : repository;
+    }
+
+    /**
+     * Get the cache of query results.
+     * @return the cache
+     */
+    public static QueryCache getQueryCache() {
+        return QUERY_CACHE;
+    }
+
+    /**
+     * Get the number of requests sent to the server by the sessions used on the current thread.
+     * @return the number of remote calls, 0 when not connected over http
+     */
+    public static long getRemoteCalls() {
+        return REMOTE_CALLS.getCalls();
+    }
+
+    /**
+     * Return a worker session to the pool.
+     * @param worker the session obtained with borrowWorkerSession
+     */
+    public static void returnWorkerSession(final Session worker) {
+        if (worker == null || !worker.isLive()) {
+            return;
+        }
+        synchronized (workerSessions) {
+            if (isConnected()) {
+                workerSessions.add(worker);
+                return;
+            }
+        }
+        worker.logout();
+    }
+
+    private static void closeWorkerSessions() {
+        synchronized (workerSessions) {
+            for (Session worker : workerSessions) {
+                if (worker.isLive()) {
+                    worker.logout();
+                }
+            }
+            workerSessions.clear();
+        }
+    }
+
     public static boolean save() {
         if (connect()) {
             try {
                 session.save();
+                // own changes are not observed
+                QUERY_CACHE.clear();
+                PENDING_CHANGES.reset();
                 return true;
             } catch (AccessDeniedException e) {
                 e.printStackTrace();
@@ -308,6 +510,53 @@ public final class JcrWrapper {
         return false;
     }
 
+    /**
+     * Save the shell session and leave the failure to the caller.
+     * @throws RepositoryException when the save fails, the changes are kept
+     */
+    public static void saveChanges() throws RepositoryException {
+        if (!connect()) {
+            throw new RepositoryException("Not connected");
+        }
+        session.save();
+        // own changes are not observed
+        QUERY_CACHE.clear();
+        PENDING_CHANGES.reset();
+    }
+
+    /**
+     * Get the changes since the last save and the auto-save thresholds.
+     * @return the pending changes
+     */
+    public static PendingChanges getPendingChanges() {
+        return PENDING_CHANGES;
+    }
+
+    /**
+     * Record a change made by a command and auto-save when a threshold is reached. When the
+     * auto-save fails the changes are kept and auto-save is suspended until the next save or
+     * refresh, so the failure is reported once.
+     * @param size the estimated size of the names and values of the change
+     */
+    public static void changed(final long size) {
+        if (!PENDING_CHANGES.record(size)) {
+            return;
+        }
+        int operations = PENDING_CHANGES.getOperations();
+        long bytes = PENDING_CHANGES.getBytes();
+        long age = PENDING_CHANGES.getAge();
+        try {
+            saveChanges();
+            System.out.printf("Auto-saved %d changes, about %d KB, pending for %d s\n", operations, bytes / 1024,
+                    age / 1000);
+        } catch (RepositoryException e) {
+            PENDING_CHANGES.suspend();
+            System.out.printf("Auto-save of %d changes failed: %s\n", operations, e.getMessage());
+            System.out.println("The changes are still pending, correct them and save or refresh to drop them. "
+                    + "Auto-save is suspended until then.");
+        }
+    }
+
     public static Node getCurrentNode() {
         if (connect()) {
             return currentNode;
@@ -366,6 +615,92 @@ public final class JcrWrapper {
         return false;
     }
 
+    /**
+     * Move a subtree with the workspace. The repository moves it in one call, the subtree is not
+     * read into the transient space and the move is persisted immediately.
+     * @param srcAbsPath the path of the node to move
+     * @param destAbsPath the new path
+     * @throws RepositoryException when the move fails
+     */
+    public static void workspaceMove(final String srcAbsPath, final String destAbsPath) throws RepositoryException {
+        if (!connect()) {
+            throw new RepositoryException("Not connected");
+        }
+        session.getWorkspace().move(srcAbsPath, destAbsPath);
+        workspaceChanged(srcAbsPath);
+        workspaceChanged(destAbsPath);
+    }
+
+    /**
+     * Copy a subtree with the workspace, in one call on the repository. The copy is persisted
+     * immediately.
+     * @param srcWorkspace the workspace to copy from, null for the current workspace
+     * @param srcAbsPath the path of the node to copy
+     * @param destAbsPath the path of the copy
+     * @throws RepositoryException when the copy fails
+     */
+    public static void workspaceCopy(final String srcWorkspace, final String srcAbsPath, final String destAbsPath)
+            throws RepositoryException {
+        if (!connect()) {
+            throw new RepositoryException("Not connected");
+        }
+        if (srcWorkspace == null) {
+            session.getWorkspace().copy(srcAbsPath, destAbsPath);
+        } else {
+            session.getWorkspace().copy(srcWorkspace, srcAbsPath, destAbsPath);
+        }
+        workspaceChanged(destAbsPath);
+    }
+
+    /**
+     * Clone a subtree of another workspace into the current workspace, in one call on the
+     * repository. The clone is persisted immediately.
+     * @param srcWorkspace the workspace to clone from
+     * @param srcAbsPath the path of the node to clone
+     * @param destAbsPath the path of the clone
+     * @param removeExisting remove nodes with the same identifiers from the current workspace
+     * @throws RepositoryException when the clone fails
+     */
+    public static void workspaceClone(final String srcWorkspace, final String srcAbsPath, final String destAbsPath,
+            final boolean removeExisting) throws RepositoryException {
+        if (!connect()) {
+            throw new RepositoryException("Not connected");
+        }
+        session.getWorkspace().clone(srcWorkspace, srcAbsPath, destAbsPath, removeExisting);
+        if (removeExisting) {
+            // nodes anywhere in the workspace may have been removed
+            clearCaches();
+        } else {
+            workspaceChanged(destAbsPath);
+        }
+    }
+
+    /**
+     * Drop the cached names and metadata of a changed subtree and its parent. Changes made with
+     * the workspace of the shell session are not observed.
+     */
+    private static void workspaceChanged(final String path) {
+        int lastSlash = path.lastIndexOf('/');
+        String parent = (lastSlash > 0) ? path.substring(0, lastSlash) : "/";
+        synchronized (mutex) {
+            removeSubtree(nodeNameCache, path);
+            removeSubtree(propertyNameCache, path);
+            removeSubtree(metadataCache, path);
+        }
+        removeFromCache(parent);
+        QUERY_CACHE.invalidate(path);
+    }
+
+    private static void removeSubtree(final Map<String, ?> cache, final String path) {
+        Iterator<String> iter = cache.keySet().iterator();
+        while (iter.hasNext()) {
+            String cached = iter.next();
+            if (cached.equals(path) || cached.startsWith(path + "/")) {
+                iter.remove();
+            }
+        }
+    }
+
 //    public static boolean copyNode(final Node srcNode, final String destAbsPath) throws PathNotFoundException,
 //            ItemExistsException {
 //        if (!connect()) {
@@ -459,6 +794,28 @@ public final class JcrWrapper {
         return null;
     }
 
+    /**
+     * Get the metadata of a node for the long listing, from the cache when possible. The cache
+     * is maintained like the name caches.
+     * @param node the node
+     * @return the metadata
+     * @throws RepositoryException when reading the node fails
+     */
+    public static NodeMetadata getNodeMetadata(final Node node) throws RepositoryException {
+        String path = node.getPath();
+        synchronized (mutex) {
+            NodeMetadata metadata = metadataCache.get(path);
+            if (metadata != null) {
+                return metadata;
+            }
+        }
+        NodeMetadata metadata = NodeMetadata.read(node);
+        synchronized (mutex) {
+            metadataCache.put(path, metadata);
+        }
+        return metadata;
+    }
+
     private static Node resolvePath(final String path) throws RepositoryException {
         if (path == null || path.length() == 0) {
             return currentNode;
@@ -532,6 +889,18 @@ public final class JcrWrapper {
         }
     }
 
+    public static Node getNode(final String path) {
+        if (!connect()) {
+            return null;
+        }
+        try {
+            return resolvePath(path);
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+        }
+        return null;
+    }
+
     public static NodeIterator getNodes(final String path) {
         if (!connect()) {
             return null;
@@ -721,7 +1090,14 @@ public final class JcrWrapper {
         }
     }
 
-    public static NodeIterator query(final String statement, final String language) throws InvalidQueryException {
+    /**
+     * Create a query on the shell session.
+     * @param statement the statement
+     * @param language the language, one of the constants of {@link Query}
+     * @return the query or null when not connected or the query manager is not available
+     * @throws InvalidQueryException when the statement is invalid
+     */
+    public static Query createQuery(final String statement, final String language) throws InvalidQueryException {
         if (statement == null) {
             return null;
         }
@@ -732,9 +1108,9 @@ public final class JcrWrapper {
         QueryManager qm;
         try {
             qm = session.getWorkspace().getQueryManager();
-            Query q = qm.createQuery(statement, language);
-            QueryResult result = q.execute();
-            return result.getNodes();
+            return qm.createQuery(statement, language);
+        } catch (InvalidQueryException e) {
+            throw e;
         } catch (RepositoryException e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Summary of a node as shown by the long listing. Only reads properties and child entries
+ * of the node itself, so it can be filled from batch fetched node states.
+ */
+public final class NodeMetadata {
+
+    private final String name;
+    private final String primaryType;
+    private final String mixins;
+    private final long childCount;
+    private final long propertyCount;
+    private final Calendar lastModified;
+
+    private NodeMetadata(final String name, final String primaryType, final String mixins, final long childCount,
+            final long propertyCount, final Calendar lastModified) {
+        this.name = name;
+        this.primaryType = primaryType;
+        this.mixins = mixins;
+        this.childCount = childCount;
+        this.propertyCount = propertyCount;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Read the metadata of a node.
+     * @param node the node
+     * @return the metadata
+     * @throws RepositoryException when reading the node fails
+     */
+    public static NodeMetadata read(final Node node) throws RepositoryException {
+        String name = node.getName();
+        if (node.getIndex() > 1) {
+            name = name + "[" + node.getIndex() + "]";
+        }
+        String primaryType = node.getProperty("jcr:primaryType").getString();
+
+        StringBuilder mixins = new StringBuilder();
+        if (node.hasProperty("jcr:mixinTypes")) {
+            for (Value value : node.getProperty("jcr:mixinTypes").getValues()) {
+                if (mixins.length() > 0) {
+                    mixins.append(',');
+                }
+                mixins.append(value.getString());
+            }
+        }
+
+        NodeIterator children = node.getNodes();
+        long childCount = children.getSize();
+        if (childCount < 0) {
+            childCount = 0;
+            while (children.hasNext()) {
+                children.skip(1);
+                childCount++;
+            }
+        }
+
+        Calendar lastModified = null;
+        if (node.hasProperty("jcr:lastModified")) {
+            Property p = node.getProperty("jcr:lastModified");
+            if (!p.isMultiple()) {
+                lastModified = p.getDate();
+            }
+        }
+        return new NodeMetadata(name, primaryType, mixins.toString(), childCount, node.getProperties().getSize(),
+                lastModified);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPrimaryType() {
+        return primaryType;
+    }
+
+    public String getMixins() {
+        return mixins;
+    }
+
+    public long getChildCount() {
+        return childCount;
+    }
+
+    /**
+     * Get the number of properties.
+     * @return the number of properties, -1 if unknown
+     */
+    public long getPropertyCount() {
+        return propertyCount;
+    }
+
+    /**
+     * Get the value of jcr:lastModified.
+     * @return the last modified date or null
+     */
+    public Calendar getLastModified() {
+        return lastModified;
+    }
+}
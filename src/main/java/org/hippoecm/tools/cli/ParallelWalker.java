@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Walk a subtree in parallel. The nodes above the split depth are visited with the
+ * shell session, every subtree starting at the split depth is walked depth first by
+ * one of the worker threads with its own worker session.
+ * @param <V> the visitor type
+ */
+public final class ParallelWalker<V extends ParallelWalker.Visitor> {
+
+    /** default number of worker threads. */
+    public static final int DEFAULT_WORKERS = 4;
+
+    /**
+     * Node visitor. Each partition of the walk is visited by one thread, a visitor that
+     * keeps state should therefore not be shared between partitions.
+     */
+    public interface Visitor {
+        /**
+         * Visit a node.
+         * @param node the node
+         * @param depth the depth relative to the start node of the walk
+         * @return true to continue with the child nodes
+         * @throws RepositoryException when reading the node fails
+         */
+        boolean visit(Node node, int depth) throws RepositoryException;
+    }
+
+    /**
+     * Create a visitor for each partition of the walk.
+     * @param <V> the visitor type
+     */
+    public interface VisitorFactory<V extends Visitor> {
+        /**
+         * Create a new visitor.
+         * @param path the path of the first node the visitor will see
+         * @return the visitor
+         */
+        V newVisitor(String path);
+    }
+
+    /**
+     * Receives the visitor of each partition as soon as the partition is done, so visitors do
+     * not have to be kept until the end of the walk. Calls are serialized.
+     * @param <V> the visitor type
+     */
+    public interface Merger<V extends Visitor> {
+        /**
+         * Take the result of a partition.
+         * @param path the path of the first node of the partition
+         * @param visitor the visitor of the partition
+         */
+        void merge(String path, V visitor);
+    }
+
+    /**
+     * Source of the worker sessions.
+     */
+    public interface SessionProvider {
+        /**
+         * Get a session for a worker thread.
+         * @return the session
+         * @throws RepositoryException when no session can be opened
+         */
+        Session borrow() throws RepositoryException;
+
+        /**
+         * Give back a session when the worker is done.
+         * @param session the session, may be null
+         */
+        void release(Session session);
+    }
+
+    /** the pooled worker sessions of the shell. */
+    private static final SessionProvider WORKER_POOL = new SessionProvider() {
+        public Session borrow() throws RepositoryException {
+            return JcrWrapper.borrowWorkerSession();
+        }
+
+        public void release(final Session session) {
+            JcrWrapper.returnWorkerSession(session);
+        }
+    };
+
+    private final VisitorFactory<V> factory;
+    private SessionProvider sessions = WORKER_POOL;
+    private final int workers;
+    private final int splitDepth;
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Create a walker.
+     * @param factory the visitor factory
+     * @param workers the number of worker threads
+     * @param splitDepth the depth at which subtrees are handed to the workers
+     */
+    public ParallelWalker(final VisitorFactory<V> factory, final int workers, final int splitDepth) {
+        this.factory = factory;
+        this.workers = Math.max(1, workers);
+        this.splitDepth = Math.max(0, splitDepth);
+    }
+
+    /**
+     * Use other sessions than the worker sessions of the shell, for example to walk another server.
+     * @param provider the session provider
+     */
+    public void setSessionProvider(final SessionProvider provider) {
+        this.sessions = provider;
+    }
+
+    /**
+     * Get the number of nodes that failed to be read during the last walk.
+     * @return the number of errors
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Walk the subtree of the node.
+     * @param root the start node
+     * @return the visitors by path. The visitor of a node above the split depth has only seen
+     * that node, the visitor of a node at the split depth has seen its whole subtree.
+     * @throws RepositoryException when reading the nodes above the split depth fails
+     */
+    public SortedMap<String, V> walk(final Node root) throws RepositoryException {
+        final Map<String, V> results = new ConcurrentHashMap<String, V>();
+        walk(root, new Merger<V>() {
+            public void merge(final String path, final V visitor) {
+                results.put(path, visitor);
+            }
+        });
+        return new TreeMap<String, V>(results);
+    }
+
+    /**
+     * Walk the subtree of the node and hand each partition to the merger when it is done.
+     * @param root the start node
+     * @param merger receives the visitor of every partition, see {@link #walk(Node)}
+     * @throws RepositoryException when reading the nodes above the split depth fails
+     */
+    public void walk(final Node root, final Merger<V> merger) throws RepositoryException {
+        errors.set(0);
+        final Merger<V> results = new Merger<V>() {
+            public synchronized void merge(final String path, final V visitor) {
+                merger.merge(path, visitor);
+            }
+        };
+        final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+        split(root, 0, results, queue);
+
+        int count = Math.min(workers, queue.size());
+        List<Thread> threads = new ArrayList<Thread>(count);
+        for (int i = 0; i < count; i++) {
+            Thread t = new Thread("walker-" + i) {
+                public void run() {
+                    work(queue, results);
+                }
+            };
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            queue.clear();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void split(final Node node, final int depth, final Merger<V> results,
+            final LinkedBlockingQueue<String> queue) throws RepositoryException {
+        if (depth >= splitDepth) {
+            queue.add(node.getPath());
+            return;
+        }
+        V visitor = factory.newVisitor(node.getPath());
+        boolean descend = visitor.visit(node, depth);
+        results.merge(node.getPath(), visitor);
+        if (!descend) {
+            return;
+        }
+        NodeIterator iter = node.getNodes();
+        while (iter.hasNext()) {
+            split(iter.nextNode(), depth + 1, results, queue);
+        }
+    }
+
+    private void work(final LinkedBlockingQueue<String> queue, final Merger<V> results) {
+        Session worker = null;
+        try {
+            worker = sessions.borrow();
+            if (worker == null) {
+                return;
+            }
+            String path;
+            while ((path = queue.poll()) != null) {
+                V visitor = factory.newVisitor(path);
+                try {
+                    descend((Node) worker.getItem(path), splitDepth, visitor);
+                } catch (RepositoryException e) {
+                    errors.incrementAndGet();
+                    System.out.println("Failed to walk " + path + ": " + e.getMessage());
+                }
+                results.merge(path, visitor);
+            }
+        } catch (RepositoryException e) {
+            System.out.println("Failed to open worker session: " + e.getMessage());
+        } finally {
+            sessions.release(worker);
+        }
+    }
+
+    private void descend(final Node node, final int depth, final V visitor) throws RepositoryException {
+        if (!visitor.visit(node, depth)) {
+            return;
+        }
+        NodeIterator iter = node.getNodes();
+        while (iter.hasNext()) {
+            Node child = iter.nextNode();
+            try {
+                descend(child, depth + 1, visitor);
+            } catch (RepositoryException e) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+/**
+ * Track the changes made by the shell since the last save, to decide when the session is
+ * auto-saved. A threshold of 0 is not used, with all thresholds 0 auto-save is off. The
+ * thresholds are only checked when a change is made, the session is never saved in the
+ * background.
+ */
+public final class PendingChanges {
+
+    /** estimated size of a changed item without its name and value. */
+    public static final long ITEM_BYTES = 100;
+
+    private int maxOperations;
+    private long maxBytes;
+    private long maxMillis;
+    private boolean suspended;
+
+    private int operations;
+    private long bytes;
+    private long firstChange;
+
+    /**
+     * Set the thresholds.
+     * @param operations the number of changes, 0 for no limit
+     * @param size the estimated size of the changes in bytes, 0 for no limit
+     * @param millis the time since the first change, 0 for no limit
+     */
+    public synchronized void setThresholds(final int operations, final long size, final long millis) {
+        maxOperations = operations;
+        maxBytes = size;
+        maxMillis = millis;
+        suspended = false;
+    }
+
+    /**
+     * Check if a threshold is set.
+     * @return true when auto-save is on
+     */
+    public synchronized boolean isEnabled() {
+        return maxOperations > 0 || maxBytes > 0 || maxMillis > 0;
+    }
+
+    /**
+     * Check if auto-save is suspended after a failed save.
+     * @return true when suspended
+     */
+    public synchronized boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Suspend auto-save until the next save or refresh.
+     */
+    public synchronized void suspend() {
+        suspended = true;
+    }
+
+    /**
+     * Resume auto-save after a refresh that keeps the changes.
+     */
+    public synchronized void resume() {
+        suspended = false;
+    }
+
+    /**
+     * Record a change.
+     * @param size the estimated size of the names and values of the change
+     * @return true when a threshold is reached and the session should be saved
+     */
+    public synchronized boolean record(final long size) {
+        if (operations == 0) {
+            firstChange = System.currentTimeMillis();
+        }
+        operations++;
+        bytes += ITEM_BYTES + size;
+        if (suspended) {
+            return false;
+        }
+        return (maxOperations > 0 && operations >= maxOperations) || (maxBytes > 0 && bytes >= maxBytes)
+                || (maxMillis > 0 && getAge() >= maxMillis);
+    }
+
+    /**
+     * Forget the changes after a save or a refresh that drops them, and resume auto-save.
+     */
+    public synchronized void reset() {
+        operations = 0;
+        bytes = 0;
+        suspended = false;
+    }
+
+    public synchronized int getOperations() {
+        return operations;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the time since the first change.
+     * @return the time in milliseconds, 0 without changes
+     */
+    public synchronized long getAge() {
+        return (operations == 0) ? 0 : System.currentTimeMillis() - firstChange;
+    }
+
+    public synchronized int getMaxOperations() {
+        return maxOperations;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of query results, as the printed cells of the rows. An entry is dropped when its time
+ * to live expires or when an observation event touches a path in the scope of the query. The
+ * scope is derived from the path constraints of the statement, statements without a clear
+ * scope are invalidated by any change.
+ */
+public final class QueryCache {
+
+    /** maximum number of cached results. */
+    public static final int MAX_ENTRIES = 50;
+
+    /** results with more rows are not cached. */
+    public static final int MAX_ROWS = 10000;
+
+    /** time to live of an entry. */
+    public static final long TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static final Pattern SQL2_SCOPE = Pattern.compile(
+            "IS(?:DESCENDANT|CHILD|SAME)NODE\\s*\\(\\s*(?:[^,()]+,\\s*)?[\\['\"]([^\\]'\"]+)[\\]'\"]\\s*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SQL_SCOPE = Pattern.compile("jcr:path\\s*(?:=|LIKE)\\s*'([^'%]*)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern OR = Pattern.compile("\\bOR\\b", Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, Result> entries = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Result> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * A cached result.
+     */
+    public static final class Result {
+        private final String scope;
+        private final String[] columns;
+        private final List<String[]> rows;
+        private final long size;
+        private final long created = System.currentTimeMillis();
+
+        private Result(final String scope, final String[] columns, final List<String[]> rows, final long size) {
+            this.scope = scope;
+            this.columns = columns;
+            this.rows = rows;
+            this.size = size;
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        public List<String[]> getRows() {
+            return rows;
+        }
+
+        /**
+         * Get the size reported by the result.
+         * @return the size, -1 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the age of the entry.
+         * @return the age in milliseconds
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - created;
+        }
+    }
+
+    /**
+     * Get a result.
+     * @param key the key
+     * @return the entry or null when not cached or expired
+     */
+    public synchronized Result get(final String key) {
+        Result entry = entries.get(key);
+        if (entry != null && entry.getAge() > TTL_MILLIS) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a result.
+     * @param key the key
+     * @param statement the statement, used to find the scope
+     * @param language the language of the statement
+     * @param columns the column names
+     * @param rows the cells of the rows
+     * @param size the size reported by the result
+     */
+    public synchronized void put(final String key, final String statement, final String language,
+            final String[] columns, final List<String[]> rows, final long size) {
+        if (rows.size() <= MAX_ROWS) {
+            entries.put(key, new Result(scope(statement, language), columns, rows, size));
+        }
+    }
+
+    /**
+     * Drop the results that may depend on an item.
+     * @param path the path of the changed item
+     */
+    public synchronized void invalidate(final String path) {
+        Iterator<Result> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            String scope = iter.next().scope;
+            if ("/".equals(scope) || path.equals(scope) || path.startsWith(scope + "/")
+                    || scope.startsWith(path + "/")) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all results.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Find the subtree a statement is restricted to.
+     * @param statement the statement
+     * @param language the language
+     * @return the path of the subtree, "/" when unknown
+     */
+    @SuppressWarnings("deprecation")
+    static String scope(final String statement, final String language) {
+        if (OR.matcher(statement).find()) {
+            return "/";
+        }
+        String scope = null;
+        if (javax.jcr.query.Query.XPATH.equals(language)) {
+            String s = statement.trim();
+            if (!s.startsWith("/jcr:root/")) {
+                return "/";
+            }
+            s = s.substring("/jcr:root".length());
+            int end = s.length();
+            for (String stop : new String[] { "//", "[", "*", "(" }) {
+                int index = s.indexOf(stop);
+                if (index >= 0 && index < end) {
+                    end = index;
+                }
+            }
+            // the last step before a descendant axis is the scope, otherwise its parent
+            scope = s.startsWith("//", end) ? s.substring(0, end) : parent(s.substring(0, end));
+        } else {
+            if (javax.jcr.query.Query.JCR_SQL2.equals(language) && statement.toUpperCase().contains(" JOIN ")) {
+                return "/";
+            }
+            Pattern pattern = javax.jcr.query.Query.JCR_SQL2.equals(language) ? SQL2_SCOPE : SQL_SCOPE;
+            Matcher m = pattern.matcher(statement);
+            while (m.find()) {
+                String path = m.group(1).trim();
+                if (pattern == SQL_SCOPE) {
+                    path = parent(path);
+                }
+                scope = (scope == null) ? path : commonAncestor(scope, path);
+            }
+        }
+        return (scope == null || scope.length() == 0) ? "/" : scope;
+    }
+
+    private static String parent(final String path) {
+        int lastSlash = path.lastIndexOf('/');
+        return (lastSlash <= 0) ? "/" : path.substring(0, lastSlash);
+    }
+
+    private static String commonAncestor(final String a, final String b) {
+        String[] partsA = a.split("/");
+        String[] partsB = b.split("/");
+        StringBuilder buf = new StringBuilder();
+        for (int i = 1; i < Math.min(partsA.length, partsB.length) && partsA[i].equals(partsB[i]); i++) {
+            buf.append('/').append(partsA[i]);
+        }
+        return (buf.length() == 0) ? "/" : buf.toString();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.jackrabbit.spi.Batch;
+import org.apache.jackrabbit.spi.IdFactory;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.PathFactory;
+import org.apache.jackrabbit.spi.QValueFactory;
+import org.apache.jackrabbit.spi.RepositoryService;
+import org.apache.jackrabbit.spi.SessionInfo;
+import org.apache.jackrabbit.spi.commons.logging.LogWriter;
+import org.apache.jackrabbit.spi.commons.logging.LogWriterProvider;
+
+/**
+ * Count the calls to the SPI repository service of jcr2spi. With jcr2dav every call that is not
+ * answered locally is a request to the server, so the count is the number of remote requests.
+ * The calls are counted per thread: jcr2spi calls the service on the thread using the session,
+ * so the count of a thread does not include the worker sessions or the observation polling.
+ */
+public final class RemoteCallCounter implements LogWriterProvider {
+
+    /**
+     * repository service methods that do not go to the server, or only for the observation
+     * polling in the background.
+     */
+    private static final Set<String> LOCAL = new HashSet<String>(Arrays.asList(new String[] { "getIdFactory",
+            "getNameFactory", "getPathFactory", "getQValueFactory", "createBatch", "dispose",
+            "createSubscription", "updateEventFilters", "getEvents" }));
+
+    private final ThreadLocal<long[]> calls = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private final LogWriter writer = new LogWriter() {
+        public long systemTime() {
+            return 0;
+        }
+
+        public void enter(final String methodName, final Object[] args) {
+            if (!LOCAL.contains(methodName)) {
+                calls.get()[0]++;
+            }
+        }
+
+        public void leave(final String methodName, final Object[] args, final Object result) {
+        }
+
+        public void error(final String methodName, final Object[] args, final Exception e) {
+        }
+    };
+
+    /**
+     * Get the number of calls made by the current thread so far.
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.get()[0];
+    }
+
+    public LogWriter getLogWriter(final RepositoryService service) {
+        return writer;
+    }
+
+    public LogWriter getLogWriter(final NameFactory nameFactory) {
+        return null;
+    }
+
+    public LogWriter getLogWriter(final PathFactory pathFactory) {
+        return null;
+    }
+
+    public LogWriter getLogWriter(final IdFactory idFactory) {
+        return null;
+    }
+
+    public LogWriter getLogWriter(final QValueFactory valueFactory) {
+        return null;
+    }
+
+    public LogWriter getLogWriter(final SessionInfo sessionInfo) {
+        return null;
+    }
+
+    public LogWriter getLogWriter(final Batch batch) {
+        return null;
+    }
+}
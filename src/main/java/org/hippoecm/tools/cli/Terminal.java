@@ -15,10 +15,15 @@
  */
 package org.hippoecm.tools.cli;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import jline.ArgumentCompletor;
 import jline.Completor;
@@ -60,6 +65,13 @@ public class Terminal {
      */
     private String historyFile;
 
+    /**
+     * Commands producing listings that can be redirected to a file. Other commands, like query,
+     * take the > as part of their arguments.
+     */
+    private static final Set<String> REDIRECT_COMMANDS = new HashSet<String>(Arrays.asList(new String[] { "du",
+            "find", "findreferences", "grep", "ls", "nodetree", "proplist" }));
+
     /**
      * The console reader from jline.
      */
@@ -155,6 +167,18 @@ public class Terminal {
             cmd = CommandHelper.getCommandForAlias(cmd);
         }
 
+        // output redirection of listings: <command> > file or <command> >> file
+        String redirectFile = null;
+        boolean append = false;
+        if (args.length > 2 && REDIRECT_COMMANDS.contains(cmd)
+                && (">".equals(args[args.length - 2]) || ">>".equals(args[args.length - 2]))) {
+            append = ">>".equals(args[args.length - 2]);
+            redirectFile = args[args.length - 1];
+            String[] cmdArgs = new String[args.length - 2];
+            System.arraycopy(args, 0, cmdArgs, 0, cmdArgs.length);
+            args = cmdArgs;
+        }
+
         if (!CommandHelper.isCommand(cmd)) {
             Terminal.println("Unknown command: " + cmd);
             return false;
@@ -162,6 +186,18 @@ public class Terminal {
 
         String classToInvoke = CommandHelper.getClassForCommand(cmd);
 
+        PrintStream stdout = System.out;
+        PrintStream redirect = null;
+        if (redirectFile != null) {
+            try {
+                redirect = new PrintStream(new BufferedOutputStream(new FileOutputStream(redirectFile, append)), false,
+                        "UTF-8");
+            } catch (IOException e) {
+                Terminal.println("Unable to open " + redirectFile + ": " + e.getMessage());
+                return false;
+            }
+            System.setOut(redirect);
+        }
         try {
             retValue = ((Boolean) CommandHelper.runMethod("execute", classToInvoke, args)).booleanValue();
         } catch (Exception e) {
@@ -171,6 +207,11 @@ public class Terminal {
             }
             e.printStackTrace();
             Terminal.println("Error Running: [" + classToInvoke + "] with [" + Arrays.toString(args) + "]");
+        } finally {
+            if (redirect != null) {
+                System.setOut(stdout);
+                redirect.close();
+            }
         }
         Terminal.println("  completed: " + (System.currentTimeMillis() - tickStart) + " msecs");
         return retValue;
@@ -268,6 +309,20 @@ public class Terminal {
         }
     }
 
+    /**
+     * Read a line from the terminal, used for interactive prompts within commands.
+     * @param prompt the prompt
+     * @return the entered line or null at end of input
+     */
+    public static final String readLine(final String prompt) {
+        try {
+            return consoleReader.readLine(prompt);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * Print string to console, fall back to System.out.
      * @param str string to print
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * Estimate totals over a subtree without walking it. Every probe descends from the root to a
+ * leaf, choosing a random child at each level. A value seen at a node is weighted with the
+ * product of the child counts along the path, which makes every probe an unbiased estimate
+ * of the total over the subtree. The estimates of all probes are averaged, so the confidence
+ * interval narrows the longer the sampler runs.
+ */
+public final class TreeSampler {
+
+    /** z value of a 95% confidence interval. */
+    private static final double Z_95 = 1.96;
+
+    /** interval between progress lines. */
+    private static final long PROGRESS_MILLIS = 2000;
+
+    /**
+     * Values of a node.
+     */
+    public interface Valuer {
+        /**
+         * Add the values of a node to the current probe with {@link TreeSampler#add(String, double)}.
+         * @param node the node
+         * @param weight the weight of the node in this probe
+         * @param sampler the sampler
+         * @throws RepositoryException when reading the node fails
+         */
+        void value(Node node, double weight, TreeSampler sampler) throws RepositoryException;
+    }
+
+    private final Node root;
+    private final Valuer valuer;
+    private final Random random = new Random();
+    private final Map<String, double[]> probe = new HashMap<String, double[]>();
+    private final Map<String, double[]> sums = new HashMap<String, double[]>();
+    private long probes;
+
+    /**
+     * Create a sampler.
+     * @param root the root of the subtree
+     * @param valuer the valuer
+     */
+    public TreeSampler(final Node root, final Valuer valuer) {
+        this.root = root;
+        this.valuer = valuer;
+    }
+
+    /**
+     * Run probes until the time budget is used, printing the estimate of one key now and then.
+     * @param budgetMillis the time budget in milliseconds
+     * @param progressKey the key to show in the progress lines, null for no progress
+     * @throws RepositoryException when reading a node fails
+     */
+    public void run(final long budgetMillis, final String progressKey) throws RepositoryException {
+        long start = System.currentTimeMillis();
+        long nextProgress = start + PROGRESS_MILLIS;
+        long now = start;
+        while (now - start < budgetMillis) {
+            probe();
+            now = System.currentTimeMillis();
+            if (progressKey != null && now >= nextProgress) {
+                Terminal.println(String.format("Probes: %d, %s: %.0f +/- %.0f", probes, progressKey,
+                        getEstimate(progressKey), getHalfWidth(progressKey)));
+                nextProgress = now + PROGRESS_MILLIS;
+            }
+        }
+    }
+
+    /**
+     * Descend once from the root to a leaf.
+     * @throws RepositoryException when reading a node fails
+     */
+    public void probe() throws RepositoryException {
+        probe.clear();
+        Node node = root;
+        double weight = 1;
+        while (node != null) {
+            valuer.value(node, weight, this);
+            NodeIterator iter = node.getNodes();
+            long size = iter.getSize();
+            if (size < 0) {
+                size = 0;
+                while (iter.hasNext()) {
+                    iter.skip(1);
+                    size++;
+                }
+                iter = node.getNodes();
+            }
+            if (size == 0) {
+                node = null;
+            } else {
+                iter.skip((long) (random.nextDouble() * size));
+                node = iter.nextNode();
+                weight *= size;
+            }
+        }
+        for (Map.Entry<String, double[]> entry : probe.entrySet()) {
+            double value = entry.getValue()[0];
+            double[] sum = sums.get(entry.getKey());
+            if (sum == null) {
+                sum = new double[2];
+                sums.put(entry.getKey(), sum);
+            }
+            sum[0] += value;
+            sum[1] += value * value;
+        }
+        probes++;
+    }
+
+    /**
+     * Add a value to the current probe.
+     * @param key the key
+     * @param value the weighted value
+     */
+    public void add(final String key, final double value) {
+        double[] sum = probe.get(key);
+        if (sum == null) {
+            sum = new double[1];
+            probe.put(key, sum);
+        }
+        sum[0] += value;
+    }
+
+    /**
+     * Get the number of probes.
+     * @return the number of probes
+     */
+    public long getProbes() {
+        return probes;
+    }
+
+    /**
+     * Get the keys seen by any probe.
+     * @return the keys
+     */
+    public SortedSet<String> getKeys() {
+        return new TreeSet<String>(sums.keySet());
+    }
+
+    /**
+     * Get the estimated total of a key.
+     * @param key the key
+     * @return the estimate
+     */
+    public double getEstimate(final String key) {
+        double[] sum = sums.get(key);
+        return (sum == null || probes == 0) ? 0 : sum[0] / probes;
+    }
+
+    /**
+     * Get the half width of the 95% confidence interval of the estimate. Probes that did not see
+     * the key count as zero.
+     * @param key the key
+     * @return the half width, or infinity with less than two probes
+     */
+    public double getHalfWidth(final String key) {
+        if (probes < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double[] sum = sums.get(key);
+        if (sum == null) {
+            return 0;
+        }
+        double variance = Math.max(0, (sum[1] - sum[0] * sum[0] / probes) / (probes - 1));
+        return Z_95 * Math.sqrt(variance / probes);
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+
+/**
+ * Report the shape of a subtree: fan-out and depth distribution, large folders and same name siblings.
+ */
+public class AnalyzeShape implements Command {
+
+    /** default number of children from which a folder is reported. */
+    private static final int DEFAULT_THRESHOLD = 1000;
+
+    /** default number of same name siblings from which a cluster is reported. */
+    private static final int DEFAULT_SIBLINGS = 10;
+
+    /** upper bounds of the fan-out buckets, the last bucket is open. */
+    private static final long[] BUCKETS = new long[] { 0, 9, 99, 999, 9999 };
+
+    /** bucket labels. */
+    private static final String[] LABELS = new String[] { "0", "1-9", "10-99", "100-999", "1k-9k", "10k+" };
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "analyzeshape";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "analyze-shape", "shape" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "analyzeshape [-c <children>] [-s <siblings>] [-t <threads>] [--csv <file>] [<path>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "show the fan-out per depth, the folders with at least -c children (default " + DEFAULT_THRESHOLD
+                + ") and the same name sibling groups of at least -s nodes (default " + DEFAULT_SIBLINGS + ")";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        int threshold = DEFAULT_THRESHOLD;
+        int siblings = DEFAULT_SIBLINGS;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        String csv = null;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-c".equals(args[i]) && i + 1 < args.length) {
+                    threshold = Integer.parseInt(args[++i]);
+                } else if ("-s".equals(args[i]) && i + 1 < args.length) {
+                    siblings = Integer.parseInt(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--csv".equals(args[i]) && i + 1 < args.length) {
+                    csv = args[++i];
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+
+        final int folderThreshold = threshold;
+        final int siblingThreshold = Math.max(2, siblings);
+        ParallelWalker<Shape> walker = new ParallelWalker<Shape>(new ParallelWalker.VisitorFactory<Shape>() {
+            public Shape newVisitor(final String path) {
+                return new Shape(folderThreshold, siblingThreshold);
+            }
+        }, threads, 1);
+
+        Shape total = new Shape(folderThreshold, siblingThreshold);
+        try {
+            for (Shape shape : walker.walk(node).values()) {
+                total.add(shape);
+            }
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        Collections.sort(total.folders, Cluster.DESCENDING);
+        Collections.sort(total.clusters, Cluster.DESCENDING);
+
+        print(total, threshold, siblingThreshold);
+        if (walker.getErrors() > 0) {
+            System.out.println("Errors: " + walker.getErrors());
+        }
+        if (csv != null) {
+            try {
+                writeCsv(total, csv);
+            } catch (IOException e) {
+                System.out.println("Unable to write " + csv + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void print(final Shape shape, final int threshold, final int siblings) {
+        StringBuilder format = new StringBuilder("%6s%12s");
+        for (int i = 0; i < LABELS.length; i++) {
+            format.append("%10s");
+        }
+        format.append("%10s\n");
+        Object[] header = new Object[LABELS.length + 3];
+        Object[] line = new Object[LABELS.length + 3];
+        header[0] = "Depth";
+        header[1] = "Nodes";
+        line[0] = "-----";
+        line[1] = "----------";
+        for (int i = 0; i < LABELS.length; i++) {
+            header[i + 2] = LABELS[i];
+            line[i + 2] = "--------";
+        }
+        header[LABELS.length + 2] = "Max";
+        line[LABELS.length + 2] = "--------";
+        System.out.println("Child nodes per node by depth:");
+        System.out.printf(format.toString(), header);
+        System.out.printf(format.toString(), line);
+        for (int depth = 0; depth < shape.fanOut.size(); depth++) {
+            long[] buckets = shape.fanOut.get(depth);
+            Object[] row = new Object[LABELS.length + 3];
+            long nodes = 0;
+            for (int i = 0; i < LABELS.length; i++) {
+                row[i + 2] = buckets[i];
+                nodes += buckets[i];
+            }
+            row[0] = depth;
+            row[1] = nodes;
+            row[LABELS.length + 2] = shape.maxFanOut.get(depth);
+            System.out.printf(format.toString(), row);
+        }
+
+        System.out.println();
+        System.out.println("Folders with at least " + threshold + " child nodes: " + shape.folders.size());
+        for (Cluster folder : shape.folders) {
+            System.out.printf("%12d  %s\n", folder.count, folder.path);
+        }
+
+        System.out.println();
+        System.out.println("Same name siblings, at least " + siblings + " per name: " + shape.clusters.size());
+        for (Cluster cluster : shape.clusters) {
+            System.out.printf("%12d  %s/%s\n", cluster.count, "/".equals(cluster.path) ? "" : cluster.path,
+                    cluster.name);
+        }
+    }
+
+    private void writeCsv(final Shape shape, final String file) throws IOException {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)), false, "UTF-8");
+        try {
+            out.print("type,depth,nodes");
+            for (String label : LABELS) {
+                out.print(",\"" + label + "\"");
+            }
+            out.println(",max");
+            for (int depth = 0; depth < shape.fanOut.size(); depth++) {
+                long[] buckets = shape.fanOut.get(depth);
+                long nodes = 0;
+                StringBuilder buf = new StringBuilder();
+                for (long count : buckets) {
+                    nodes += count;
+                    buf.append(',').append(count);
+                }
+                out.println("depth," + depth + "," + nodes + buf + "," + shape.maxFanOut.get(depth));
+            }
+            out.println("type,path,name,count");
+            for (Cluster folder : shape.folders) {
+                out.println("folder," + quote(folder.path) + ",," + folder.count);
+            }
+            for (Cluster cluster : shape.clusters) {
+                out.println("siblings," + quote(cluster.path) + "," + quote(cluster.name) + "," + cluster.count);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String quote(final String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * A folder or a group of same name siblings.
+     */
+    private static final class Cluster {
+        private static final Comparator<Cluster> DESCENDING = new Comparator<Cluster>() {
+            public int compare(final Cluster c1, final Cluster c2) {
+                return (c1.count > c2.count) ? -1 : ((c1.count == c2.count) ? c1.path.compareTo(c2.path) : 1);
+            }
+        };
+
+        private final String path;
+        private final String name;
+        private final long count;
+
+        private Cluster(final String path, final String name, final long count) {
+            this.path = path;
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Shape counters of a partition of the walk.
+     */
+    private static final class Shape implements ParallelWalker.Visitor {
+        private final int folderThreshold;
+        private final int siblingThreshold;
+        private final List<long[]> fanOut = new ArrayList<long[]>();
+        private final List<Long> maxFanOut = new ArrayList<Long>();
+        private final List<Cluster> folders = new ArrayList<Cluster>();
+        private final List<Cluster> clusters = new ArrayList<Cluster>();
+        private final Map<String, int[]> names = new HashMap<String, int[]>();
+
+        private Shape(final int folderThreshold, final int siblingThreshold) {
+            this.folderThreshold = folderThreshold;
+            this.siblingThreshold = siblingThreshold;
+        }
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            long children = 0;
+            boolean hasSiblings = false;
+            NodeIterator iter = node.getNodes();
+            while (iter.hasNext()) {
+                Node child = iter.nextNode();
+                children++;
+                if (child.getIndex() > 1) {
+                    hasSiblings = true;
+                }
+            }
+            count(depth, children);
+            if (children >= folderThreshold) {
+                folders.add(new Cluster(node.getPath(), null, children));
+            }
+            if (hasSiblings) {
+                countSiblings(node);
+            }
+            return true;
+        }
+
+        /**
+         * Only called for nodes that have same name siblings, counting is a second pass over the
+         * child entries which are already loaded at this point.
+         */
+        private void countSiblings(final Node node) throws RepositoryException {
+            names.clear();
+            NodeIterator iter = node.getNodes();
+            while (iter.hasNext()) {
+                String name = iter.nextNode().getName();
+                int[] count = names.get(name);
+                if (count == null) {
+                    names.put(name, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+            for (Map.Entry<String, int[]> entry : names.entrySet()) {
+                if (entry.getValue()[0] >= siblingThreshold) {
+                    clusters.add(new Cluster(node.getPath(), entry.getKey(), entry.getValue()[0]));
+                }
+            }
+        }
+
+        private void count(final int depth, final long children) {
+            while (fanOut.size() <= depth) {
+                fanOut.add(new long[LABELS.length]);
+                maxFanOut.add(Long.valueOf(0));
+            }
+            int bucket = 0;
+            while (bucket < BUCKETS.length && children > BUCKETS[bucket]) {
+                bucket++;
+            }
+            fanOut.get(depth)[bucket]++;
+            if (children > maxFanOut.get(depth).longValue()) {
+                maxFanOut.set(depth, Long.valueOf(children));
+            }
+        }
+
+        private void add(final Shape other) {
+            for (int depth = 0; depth < other.fanOut.size(); depth++) {
+                while (fanOut.size() <= depth) {
+                    fanOut.add(new long[LABELS.length]);
+                    maxFanOut.add(Long.valueOf(0));
+                }
+                long[] buckets = fanOut.get(depth);
+                long[] otherBuckets = other.fanOut.get(depth);
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] += otherBuckets[i];
+                }
+                if (other.maxFanOut.get(depth).longValue() > maxFanOut.get(depth).longValue()) {
+                    maxFanOut.set(depth, other.maxFanOut.get(depth));
+                }
+            }
+            folders.addAll(other.folders);
+            clusters.addAll(other.clusters);
+        }
+    }
+}
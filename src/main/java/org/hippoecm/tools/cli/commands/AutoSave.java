@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.PendingChanges;
+
+/**
+ * Show or set the auto-save thresholds.
+ */
+public class AutoSave implements Command {
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "autosave";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "auto-save" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "autosave [off | [-n <changes>] [-b <kbytes>] [-t <seconds>]]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "show or set when the session is saved automatically: after a number of changes, when the "
+                + "estimated size of the changes or the time since the first change is reached. Thresholds "
+                + "are checked when propset, propadd, propdelete, valueadd, valueremove, nodeadd, noderm, "
+                + "mixinadd or mixinremove change the session. After a failed auto-save the changes are kept "
+                + "and auto-save is suspended until the next save or refresh";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        PendingChanges pending = JcrWrapper.getPendingChanges();
+        if (args.length == 1) {
+            printStatus(pending);
+            return true;
+        }
+        if (args.length == 2 && "off".equals(args[1])) {
+            pending.setThresholds(0, 0, 0);
+            System.out.println("Auto-save off");
+            return true;
+        }
+
+        int operations = 0;
+        long kbytes = 0;
+        long seconds = 0;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-n".equals(args[i]) && i + 1 < args.length) {
+                    operations = Integer.parseInt(args[++i]);
+                } else if ("-b".equals(args[i]) && i + 1 < args.length) {
+                    kbytes = Long.parseLong(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    seconds = Long.parseLong(args[++i]);
+                } else {
+                    System.out.println(usage());
+                    System.out.println(help());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        pending.setThresholds(operations, kbytes * 1024, seconds * 1000);
+        printStatus(pending);
+        return true;
+    }
+
+    private void printStatus(final PendingChanges pending) {
+        if (pending.isEnabled()) {
+            System.out.printf("Auto-save after %s changes, %s KB or %s s%s\n", limit(pending.getMaxOperations()),
+                    limit(pending.getMaxBytes() / 1024), limit(pending.getMaxMillis() / 1000),
+                    pending.isSuspended() ? " (suspended after a failed save)" : "");
+        } else {
+            System.out.println("Auto-save off");
+        }
+        System.out.printf("Pending: %d changes, about %d KB, for %d s\n", pending.getOperations(),
+                pending.getBytes() / 1024, pending.getAge() / 1000);
+    }
+
+    private static String limit(final long value) {
+        return (value > 0) ? Long.toString(value) : "-";
+    }
+}
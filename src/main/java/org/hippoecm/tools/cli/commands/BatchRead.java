@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+
+/**
+ * Set the batch read depth of the worker sessions.
+ */
+public class BatchRead implements Command {
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "batchread";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] {};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "batchread [<depth>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "show or set the number of levels worker sessions fetch per request, used after next login";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        if (args.length == 1) {
+            System.out.println("Current batch read depth: " + JcrWrapper.getBatchReadDepth());
+        } else if (args.length == 2) {
+            try {
+                JcrWrapper.setBatchReadDepth(Integer.parseInt(args[1]));
+            } catch (NumberFormatException e) {
+                System.out.println("Not a number: " + args[1]);
+                return false;
+            }
+        } else {
+            System.out.println(usage());
+            System.out.println(help());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+
+/**
+ * Compare two subtrees.
+ */
+public class Diff implements Command {
+
+    /** properties that differ between copies of the same content by design. */
+    private static final Set<String> IGNORED = new HashSet<String>(Arrays.asList(new String[] { "jcr:uuid",
+            "jcr:baseVersion", "jcr:predecessors", "jcr:versionHistory" }));
+
+    /** maximum length of a value in the output. */
+    private static final int MAX_VALUE_LENGTH = 60;
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "diff";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "nodediff" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "diff [-w <workspace>] [-t <threads>] <pathA> <pathB>";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "compare two subtrees, pathB is read from workspace when given. "
+                + "Prints +/- for added/removed nodes and properties, > for moves, ~ for values and T for types";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String workspace = null;
+        String pathA = null;
+        String pathB = null;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-w".equals(args[i]) && i + 1 < args.length) {
+                    workspace = args[++i];
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (pathA == null) {
+                    pathA = args[i];
+                } else if (pathB == null) {
+                    pathB = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (pathB == null) {
+            System.out.println(usage());
+            System.out.println(help());
+            return false;
+        }
+
+        Node nodeA = JcrWrapper.getNode(pathA);
+        if (nodeA == null) {
+            System.out.println("Path not found: " + pathA);
+            return false;
+        }
+        Session sessionB = null;
+        try {
+            Node nodeB;
+            if (workspace == null) {
+                nodeB = JcrWrapper.getNode(pathB);
+            } else {
+                sessionB = JcrWrapper.openSession(workspace);
+                nodeB = (Node) sessionB.getItem(absolutePath(pathB));
+            }
+            if (nodeB == null) {
+                System.out.println("Path not found: " + pathB);
+                return false;
+            }
+
+            Result result = new Result(nodeA.getPath(), nodeB.getPath());
+            LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+            Differ top = new Differ(result);
+            top.compareProperties(nodeA, nodeB, ".");
+            top.compareChildren(nodeA, nodeB, ".", queue);
+            runWorkers(queue, result, workspace, threads);
+            result.printNodes();
+            System.out.println("Differences: " + result.differences.get());
+            if (result.errors.get() > 0) {
+                System.out.println("Errors: " + result.errors.get());
+            }
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        } finally {
+            if (sessionB != null) {
+                sessionB.logout();
+            }
+        }
+        return true;
+    }
+
+    private String absolutePath(final String path) throws RepositoryException {
+        if (path.startsWith("/")) {
+            return path;
+        }
+        String current = JcrWrapper.getCurrentNode().getPath();
+        return "/".equals(current) ? "/" + path : current + "/" + path;
+    }
+
+    private void runWorkers(final LinkedBlockingQueue<String> queue, final Result result, final String workspace,
+            final int threads) {
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < Math.min(Math.max(1, threads), queue.size()); i++) {
+            Thread t = new Thread("diff-" + i) {
+                public void run() {
+                    Session sessionA = null;
+                    Session sessionB = null;
+                    try {
+                        sessionA = JcrWrapper.borrowWorkerSession();
+                        sessionB = (workspace == null) ? sessionA : JcrWrapper.openSession(workspace);
+                        Differ differ = new Differ(result);
+                        String rel;
+                        while ((rel = queue.poll()) != null) {
+                            try {
+                                Node a = (Node) sessionA.getItem(result.pathA(rel));
+                                Node b = (Node) sessionB.getItem(result.pathB(rel));
+                                differ.compareNode(a, b, rel);
+                            } catch (RepositoryException e) {
+                                result.errors.incrementAndGet();
+                                System.out.println("Failed to compare " + rel + ": " + e.getMessage());
+                            }
+                        }
+                    } catch (RepositoryException e) {
+                        System.out.println("Failed to open worker session: " + e.getMessage());
+                    } finally {
+                        if (sessionB != null && sessionB != sessionA) {
+                            sessionB.logout();
+                        }
+                        JcrWrapper.returnWorkerSession(sessionA);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        try {
+            for (Thread t : workers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            queue.clear();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * State shared by the workers. Added and removed nodes are kept until the end to
+     * detect moves by identifier.
+     */
+    private static final class Result {
+        private final String rootA;
+        private final String rootB;
+        private final AtomicLong differences = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Map<String, String> removed = new ConcurrentHashMap<String, String>();
+        private final Map<String, String> added = new ConcurrentHashMap<String, String>();
+
+        private Result(final String rootA, final String rootB) {
+            this.rootA = rootA;
+            this.rootB = rootB;
+        }
+
+        private String pathA(final String rel) {
+            return join(rootA, rel);
+        }
+
+        private String pathB(final String rel) {
+            return join(rootB, rel);
+        }
+
+        private static String join(final String root, final String rel) {
+            if (".".equals(rel)) {
+                return root;
+            }
+            return "/".equals(root) ? "/" + rel : root + "/" + rel;
+        }
+
+        private void report(final String line) {
+            differences.incrementAndGet();
+            System.out.println(line);
+        }
+
+        private void nodeRemoved(final Node node, final String rel) throws RepositoryException {
+            removed.put(rel, identifier(node));
+        }
+
+        private void nodeAdded(final Node node, final String rel) throws RepositoryException {
+            added.put(rel, identifier(node));
+        }
+
+        private String identifier(final Node node) throws RepositoryException {
+            return node.hasProperty("jcr:uuid") ? node.getProperty("jcr:uuid").getString() : "";
+        }
+
+        /**
+         * Print the added and removed nodes, pairs with the same identifier as moves.
+         */
+        private void printNodes() {
+            Map<String, String> addedById = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : added.entrySet()) {
+                if (entry.getValue().length() > 0) {
+                    addedById.put(entry.getValue(), entry.getKey());
+                }
+            }
+            SortedMap<String, String> lines = new TreeMap<String, String>();
+            for (Map.Entry<String, String> entry : removed.entrySet()) {
+                String target = addedById.remove(entry.getValue());
+                if (target != null) {
+                    added.remove(target);
+                    lines.put(entry.getKey(), "> " + entry.getKey() + " -> " + target);
+                } else {
+                    lines.put(entry.getKey(), "- " + entry.getKey());
+                }
+            }
+            for (Iterator<String> iter = added.keySet().iterator(); iter.hasNext();) {
+                String rel = iter.next();
+                lines.put(rel, "+ " + rel);
+            }
+            for (String line : lines.values()) {
+                report(line);
+            }
+        }
+    }
+
+    /**
+     * Compares node pairs, one instance per thread.
+     */
+    private static final class Differ {
+        private final Result result;
+        private final MessageDigest digest;
+        private final byte[] buffer = new byte[8192];
+
+        private Differ(final Result result) {
+            this.result = result;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        private void compareNode(final Node a, final Node b, final String rel) throws RepositoryException {
+            compareProperties(a, b, rel);
+            compareChildren(a, b, rel, null);
+        }
+
+        /**
+         * Merge the sorted child node lists of both nodes. Pairs are compared recursively or,
+         * when a queue is given, queued for the workers.
+         */
+        private void compareChildren(final Node a, final Node b, final String rel,
+                final LinkedBlockingQueue<String> queue) throws RepositoryException {
+            Iterator<Map.Entry<String, Node>> iterA = childNodes(a).entrySet().iterator();
+            Iterator<Map.Entry<String, Node>> iterB = childNodes(b).entrySet().iterator();
+            Map.Entry<String, Node> childA = iterA.hasNext() ? iterA.next() : null;
+            Map.Entry<String, Node> childB = iterB.hasNext() ? iterB.next() : null;
+            while (childA != null || childB != null) {
+                int cmp;
+                if (childA == null) {
+                    cmp = 1;
+                } else if (childB == null) {
+                    cmp = -1;
+                } else {
+                    cmp = childA.getKey().compareTo(childB.getKey());
+                }
+                if (cmp < 0) {
+                    result.nodeRemoved(childA.getValue(), child(rel, childA.getKey()));
+                    childA = iterA.hasNext() ? iterA.next() : null;
+                } else if (cmp > 0) {
+                    result.nodeAdded(childB.getValue(), child(rel, childB.getKey()));
+                    childB = iterB.hasNext() ? iterB.next() : null;
+                } else {
+                    String childRel = child(rel, childA.getKey());
+                    if (queue != null) {
+                        queue.add(childRel);
+                    } else {
+                        try {
+                            compareNode(childA.getValue(), childB.getValue(), childRel);
+                        } catch (RepositoryException e) {
+                            result.errors.incrementAndGet();
+                        }
+                    }
+                    childA = iterA.hasNext() ? iterA.next() : null;
+                    childB = iterB.hasNext() ? iterB.next() : null;
+                }
+            }
+        }
+
+        /**
+         * Merge the sorted property lists of both nodes.
+         */
+        private void compareProperties(final Node a, final Node b, final String rel) throws RepositoryException {
+            Iterator<Map.Entry<String, Property>> iterA = properties(a).entrySet().iterator();
+            Iterator<Map.Entry<String, Property>> iterB = properties(b).entrySet().iterator();
+            Map.Entry<String, Property> propA = iterA.hasNext() ? iterA.next() : null;
+            Map.Entry<String, Property> propB = iterB.hasNext() ? iterB.next() : null;
+            while (propA != null || propB != null) {
+                int cmp;
+                if (propA == null) {
+                    cmp = 1;
+                } else if (propB == null) {
+                    cmp = -1;
+                } else {
+                    cmp = propA.getKey().compareTo(propB.getKey());
+                }
+                if (cmp < 0) {
+                    result.report("- " + child(rel, propA.getKey()));
+                    propA = iterA.hasNext() ? iterA.next() : null;
+                } else if (cmp > 0) {
+                    result.report("+ " + child(rel, propB.getKey()));
+                    propB = iterB.hasNext() ? iterB.next() : null;
+                } else {
+                    compareProperty(propA.getValue(), propB.getValue(), child(rel, propA.getKey()));
+                    propA = iterA.hasNext() ? iterA.next() : null;
+                    propB = iterB.hasNext() ? iterB.next() : null;
+                }
+            }
+        }
+
+        private void compareProperty(final Property a, final Property b, final String rel)
+                throws RepositoryException {
+            if (a.getType() != b.getType()) {
+                result.report("T " + rel + ": " + PropertyType.nameFromValue(a.getType()) + " -> "
+                        + PropertyType.nameFromValue(b.getType()));
+                return;
+            }
+            if (a.isMultiple() != b.isMultiple()) {
+                result.report("T " + rel + ": " + (a.isMultiple() ? "multiple -> single" : "single -> multiple"));
+                return;
+            }
+            // node type changes are reported as type changes
+            String marker = (rel.endsWith("jcr:primaryType") || rel.endsWith("jcr:mixinTypes")) ? "T " : "~ ";
+            if (a.getType() == PropertyType.BINARY) {
+                if (!sameBinaries(a, b)) {
+                    result.report(marker + rel + ": binary content differs");
+                }
+                return;
+            }
+            String valueA = format(a);
+            String valueB = format(b);
+            if (!valueA.equals(valueB)) {
+                result.report(marker + rel + ": " + abbreviate(valueA) + " -> " + abbreviate(valueB));
+            }
+        }
+
+        /**
+         * Compare binaries by length first and by a streamed hash when the lengths are equal.
+         */
+        private boolean sameBinaries(final Property a, final Property b) throws RepositoryException {
+            Value[] valuesA = a.isMultiple() ? a.getValues() : new Value[] { a.getValue() };
+            Value[] valuesB = b.isMultiple() ? b.getValues() : new Value[] { b.getValue() };
+            if (valuesA.length != valuesB.length) {
+                return false;
+            }
+            long[] lengthsA = a.isMultiple() ? a.getLengths() : new long[] { a.getLength() };
+            long[] lengthsB = b.isMultiple() ? b.getLengths() : new long[] { b.getLength() };
+            if (!Arrays.equals(lengthsA, lengthsB)) {
+                return false;
+            }
+            for (int i = 0; i < valuesA.length; i++) {
+                if (!Arrays.equals(hash(valuesA[i]), hash(valuesB[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[] hash(final Value value) throws RepositoryException {
+            Binary binary = value.getBinary();
+            InputStream in = null;
+            try {
+                digest.reset();
+                in = binary.getStream();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+                return digest.digest();
+            } catch (IOException e) {
+                throw new RepositoryException("Unable to read binary: " + e.getMessage(), e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                binary.dispose();
+            }
+        }
+
+        private static String format(final Property p) throws RepositoryException {
+            if (!p.isMultiple()) {
+                return p.getString();
+            }
+            StringBuilder buf = new StringBuilder("[");
+            Value[] values = p.getValues();
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+                buf.append(values[i].getString());
+            }
+            return buf.append("]").toString();
+        }
+
+        private static String abbreviate(final String value) {
+            String flat = value.replace('\n', ' ');
+            if (flat.length() > MAX_VALUE_LENGTH) {
+                return "'" + flat.substring(0, MAX_VALUE_LENGTH) + "...'";
+            }
+            return "'" + flat + "'";
+        }
+
+        private static String child(final String rel, final String name) {
+            return ".".equals(rel) ? name : rel + "/" + name;
+        }
+
+        private static SortedMap<String, Node> childNodes(final Node node) throws RepositoryException {
+            SortedMap<String, Node> children = new TreeMap<String, Node>();
+            NodeIterator iter = node.getNodes();
+            while (iter.hasNext()) {
+                Node child = iter.nextNode();
+                children.put(JcrWrapper.fullName(child), child);
+            }
+            return children;
+        }
+
+        private static SortedMap<String, Property> properties(final Node node) throws RepositoryException {
+            SortedMap<String, Property> properties = new TreeMap<String, Property>();
+            PropertyIterator iter = node.getProperties();
+            while (iter.hasNext()) {
+                Property p = iter.nextProperty();
+                if (!IGNORED.contains(p.getName())) {
+                    properties.put(p.getName(), p);
+                }
+            }
+            return properties;
+        }
+    }
+}
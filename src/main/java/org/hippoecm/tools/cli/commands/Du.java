@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+import org.hippoecm.tools.cli.TreeSampler;
+
+/**
+ * Show node, property and binary size statistics of a subtree.
+ */
+public class Du implements Command {
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "du";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "diskusage" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "du [-d <depth>] [-t <threads>] [--sample <seconds>] [<path>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "count nodes, properties, multi values and binary bytes per child up to depth, default is 1. "
+                + "--sample estimates the totals of the subtree by random descents within the time budget";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        int depth = 1;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        int sample = 0;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-d".equals(args[i]) && i + 1 < args.length) {
+                    depth = Integer.parseInt(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--sample".equals(args[i]) && i + 1 < args.length) {
+                    sample = Integer.parseInt(args[++i]);
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+        if (sample > 0) {
+            return sample(node, sample);
+        }
+
+        ParallelWalker<Usage> walker = new ParallelWalker<Usage>(new ParallelWalker.VisitorFactory<Usage>() {
+            public Usage newVisitor(final String path) {
+                return new Usage();
+            }
+        }, threads, depth);
+
+        try {
+            SortedMap<String, Usage> results = walker.walk(node);
+            SortedMap<String, Usage> totals = rollup(results);
+            System.out.printf("%12s%12s%12s%16s  %s\n", "Nodes", "Properties", "Multi", "Binary bytes", "Path");
+            System.out.printf("%12s%12s%12s%16s  %s\n", "----------", "----------", "----------", "--------------",
+                    "--------------------");
+            for (Map.Entry<String, Usage> entry : totals.entrySet()) {
+                Usage u = entry.getValue();
+                System.out.printf("%12d%12d%12d%16d  %s\n", u.nodes, u.properties, u.multiValues, u.binaryBytes, entry
+                        .getKey());
+            }
+            if (walker.getErrors() > 0) {
+                System.out.println("Errors: " + walker.getErrors());
+            }
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estimate the totals of the subtree within a time budget.
+     * @param node the root of the subtree
+     * @param seconds the time budget
+     * @return true when sampling succeeded
+     */
+    private boolean sample(final Node node, final int seconds) {
+        TreeSampler sampler = new TreeSampler(node, new TreeSampler.Valuer() {
+            public void value(final Node n, final double weight, final TreeSampler s) throws RepositoryException {
+                Usage usage = new Usage();
+                usage.visit(n, 0);
+                s.add("nodes", weight * usage.nodes);
+                s.add("properties", weight * usage.properties);
+                s.add("multi", weight * usage.multiValues);
+                s.add("binary", weight * usage.binaryBytes);
+            }
+        });
+        try {
+            sampler.run(seconds * 1000L, "nodes");
+            System.out.printf("%12s%12s%12s%16s  %s\n", "Nodes", "Properties", "Multi", "Binary bytes", "Path");
+            System.out.printf("%12s%12s%12s%16s  %s\n", "----------", "----------", "----------", "--------------",
+                    "--------------------");
+            System.out.printf("%12.0f%12.0f%12.0f%16.0f  %s\n", sampler.getEstimate("nodes"), sampler
+                    .getEstimate("properties"), sampler.getEstimate("multi"), sampler.getEstimate("binary"), node
+                    .getPath());
+            System.out.printf("%12.0f%12.0f%12.0f%16.0f  %s\n", sampler.getHalfWidth("nodes"), sampler
+                    .getHalfWidth("properties"), sampler.getHalfWidth("multi"), sampler.getHalfWidth("binary"),
+                    "+/- (95%)");
+            System.out.println("Probes: " + sampler.getProbes());
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add the counts of every partition to the partitions of all its ancestors.
+     * @param results the partitions of the walk
+     * @return the totals per path
+     */
+    private SortedMap<String, Usage> rollup(final SortedMap<String, Usage> results) {
+        SortedMap<String, Usage> totals = new TreeMap<String, Usage>();
+        for (String path : results.keySet()) {
+            totals.put(path, new Usage());
+        }
+        for (Map.Entry<String, Usage> entry : results.entrySet()) {
+            String path = entry.getKey();
+            while (path != null) {
+                Usage total = totals.get(path);
+                if (total != null) {
+                    total.add(entry.getValue());
+                }
+                if ("/".equals(path)) {
+                    path = null;
+                } else {
+                    int lastSlash = path.lastIndexOf('/');
+                    path = (lastSlash == 0) ? "/" : path.substring(0, lastSlash);
+                }
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Counters of a partition of the walk.
+     */
+    private static final class Usage implements ParallelWalker.Visitor {
+        private long nodes;
+        private long properties;
+        private long multiValues;
+        private long binaryBytes;
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            nodes++;
+            PropertyIterator iter = node.getProperties();
+            while (iter.hasNext()) {
+                Property p = iter.nextProperty();
+                properties++;
+                boolean binary = p.getType() == PropertyType.BINARY;
+                if (p.isMultiple()) {
+                    multiValues++;
+                    if (binary) {
+                        for (long length : p.getLengths()) {
+                            if (length > 0) {
+                                binaryBytes += length;
+                            }
+                        }
+                    }
+                } else if (binary) {
+                    long length = p.getLength();
+                    if (length > 0) {
+                        binaryBytes += length;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void add(final Usage other) {
+            nodes += other.nodes;
+            properties += other.properties;
+            multiValues += other.multiValues;
+            binaryBytes += other.binaryBytes;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+import org.hippoecm.tools.cli.Terminal;
+
+/**
+ * Find nodes by name and type in a subtree.
+ */
+public class Find implements Command {
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "find";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "findnodes" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "find [<path>] [-name <glob>] [-type <nodetype>] [-maxdepth <n>] [-t <threads>] [> <file>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "print the paths of the nodes in a subtree matching name and type, glob supports * and ?";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String path = null;
+        String glob = null;
+        String type = null;
+        int maxDepth = Integer.MAX_VALUE;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-name".equals(args[i]) && i + 1 < args.length) {
+                    glob = args[++i];
+                } else if ("-type".equals(args[i]) && i + 1 < args.length) {
+                    type = args[++i];
+                } else if ("-maxdepth".equals(args[i]) && i + 1 < args.length) {
+                    maxDepth = Integer.parseInt(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (path == null && !args[i].startsWith("-")) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+
+        final Filter filter = new Filter(glob, type, maxDepth);
+        ParallelWalker<Filter> walker = new ParallelWalker<Filter>(new ParallelWalker.VisitorFactory<Filter>() {
+            public Filter newVisitor(final String path) {
+                return filter;
+            }
+        }, threads, (maxDepth > 1) ? 1 : 0);
+        try {
+            walker.walk(node);
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        System.out.flush();
+        // summary goes to the terminal, not to a redirected output
+        Terminal.println("Found: " + filter.matches.get());
+        if (walker.getErrors() > 0) {
+            Terminal.println("Errors: " + walker.getErrors());
+        }
+        return true;
+    }
+
+    /**
+     * Translate a glob to a regular expression.
+     * @param glob the glob with * and ? wildcards
+     * @return the pattern
+     */
+    private static Pattern globToPattern(final String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append((c == '*') ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Stateless filter, shared by all the workers. Matches are printed as soon as they are found.
+     */
+    private static final class Filter implements ParallelWalker.Visitor {
+        private final Pattern namePattern;
+        private final String jcrNamePattern;
+        private final String type;
+        private final int maxDepth;
+        private final AtomicLong matches = new AtomicLong();
+
+        private Filter(final String glob, final String type, final int maxDepth) {
+            this.namePattern = (glob == null) ? null : globToPattern(glob);
+            // JCR name patterns know * but not ?, and reserve | for alternatives
+            if (glob != null && glob.indexOf('?') < 0 && glob.indexOf('|') < 0) {
+                this.jcrNamePattern = glob;
+            } else {
+                this.jcrNamePattern = null;
+            }
+            this.type = type;
+            this.maxDepth = maxDepth;
+        }
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            match(node);
+            if (depth >= maxDepth) {
+                return false;
+            }
+            if (depth == maxDepth - 1 && jcrNamePattern != null) {
+                // last level, let the repository filter the child nodes by name
+                NodeIterator iter = node.getNodes(jcrNamePattern);
+                while (iter.hasNext()) {
+                    match(iter.nextNode());
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private void match(final Node node) throws RepositoryException {
+            if (namePattern != null && !namePattern.matcher(node.getName()).matches()) {
+                return;
+            }
+            if (type != null && !node.isNodeType(type)) {
+                return;
+            }
+            matches.incrementAndGet();
+            System.out.println(node.getPath());
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+import org.hippoecm.tools.cli.Terminal;
+
+/**
+ * Search the string like property values in a subtree.
+ */
+public class Grep implements Command {
+
+    /** number of characters shown around a match. */
+    private static final int CONTEXT = 30;
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "grep";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "propgrep" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "grep [-i] [-p <property pattern>] [-t <threads>] <regex> [<path>] [> <file>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "print the string, name, path and reference properties in a subtree with a value matching regex";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String regex = null;
+        String path = null;
+        String propertyPattern = null;
+        boolean ignoreCase = false;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-i".equals(args[i])) {
+                    ignoreCase = true;
+                } else if ("-p".equals(args[i]) && i + 1 < args.length) {
+                    propertyPattern = args[++i];
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (regex == null) {
+                    regex = args[i];
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (regex == null) {
+            System.out.println(usage());
+            System.out.println(help());
+            return false;
+        }
+
+        final Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+        } catch (PatternSyntaxException e) {
+            System.out.println("Invalid regex: " + e.getDescription());
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+
+        final AtomicLong matches = new AtomicLong();
+        final String namePattern = propertyPattern;
+        ParallelWalker<Searcher> walker = new ParallelWalker<Searcher>(new ParallelWalker.VisitorFactory<Searcher>() {
+            public Searcher newVisitor(final String path) {
+                return new Searcher(pattern.matcher(""), namePattern, matches);
+            }
+        }, threads, 1);
+        try {
+            walker.walk(node);
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        System.out.flush();
+        Terminal.println("Matches: " + matches.get());
+        if (walker.getErrors() > 0) {
+            Terminal.println("Errors: " + walker.getErrors());
+        }
+        return true;
+    }
+
+    /**
+     * Searcher for one partition of the walk, with its own matcher.
+     */
+    private static final class Searcher implements ParallelWalker.Visitor {
+        private final Matcher matcher;
+        private final String namePattern;
+        private final AtomicLong matches;
+
+        private Searcher(final Matcher matcher, final String namePattern, final AtomicLong matches) {
+            this.matcher = matcher;
+            this.namePattern = namePattern;
+            this.matches = matches;
+        }
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            PropertyIterator iter = (namePattern == null) ? node.getProperties() : node.getProperties(namePattern);
+            while (iter.hasNext()) {
+                Property p = iter.nextProperty();
+                switch (p.getType()) {
+                case PropertyType.STRING:
+                case PropertyType.NAME:
+                case PropertyType.PATH:
+                case PropertyType.REFERENCE:
+                    if (p.isMultiple()) {
+                        Value[] values = p.getValues();
+                        for (int i = 0; i < values.length; i++) {
+                            search(p, i, values[i].getString());
+                        }
+                    } else {
+                        search(p, -1, p.getString());
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+            return true;
+        }
+
+        private void search(final Property p, final int index, final String value) throws RepositoryException {
+            if (!matcher.reset(value).find()) {
+                return;
+            }
+            matches.incrementAndGet();
+            int from = Math.max(0, matcher.start() - CONTEXT);
+            int to = Math.min(value.length(), matcher.end() + CONTEXT);
+            StringBuilder buf = new StringBuilder(p.getPath());
+            if (index >= 0) {
+                buf.append('[').append(index).append(']');
+            }
+            buf.append(": ");
+            if (from > 0) {
+                buf.append("...");
+            }
+            buf.append(value.substring(from, to).replace('\n', ' '));
+            if (to < value.length()) {
+                buf.append("...");
+            }
+            System.out.println(buf.toString());
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+import org.hippoecm.tools.cli.Terminal;
+
+/**
+ * Compute Merkle digests of a subtree and compare them.
+ */
+public class Hash implements Command {
+
+    /** properties that differ between copies of the same content by design. */
+    private static final Set<String> IGNORED = new HashSet<String>(Arrays.asList(new String[] { "jcr:uuid",
+            "jcr:baseVersion", "jcr:predecessors", "jcr:versionHistory" }));
+
+    /** length of a hex encoded digest. */
+    private static final int HEX_LENGTH = 40;
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "hash";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "merkle" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "hash [-d <depth>] [-b] [-t <threads>] [--server <url>] [<path>] [> <file>] | "
+                + "hash --compare <fileA> <fileB>";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "print subtree digests up to depth (default 1), -b only uses binary lengths. "
+                + "--server compares with the same path on another server, --compare compares two hash files";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        int depth = 1;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        boolean lengthsOnly = false;
+        String server = null;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("--compare".equals(args[i]) && i + 2 < args.length) {
+                    return compareFiles(args[i + 1], args[i + 2]);
+                } else if ("-d".equals(args[i]) && i + 1 < args.length) {
+                    depth = Integer.parseInt(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("-b".equals(args[i])) {
+                    lengthsOnly = true;
+                } else if ("--server".equals(args[i]) && i + 1 < args.length) {
+                    server = args[++i];
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+        try {
+            if (server == null) {
+                SortedMap<String, String> digests = new Tree(depth, threads, lengthsOnly).compute(node, null);
+                for (Map.Entry<String, String> entry : digests.entrySet()) {
+                    System.out.println(entry.getValue() + "  " + entry.getKey());
+                }
+                return true;
+            }
+            return compareServer(node, server, depth, threads, lengthsOnly);
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Hash the subtree on both servers at the same time and compare the digests.
+     */
+    private boolean compareServer(final Node local, final String server, final int depth, final int threads,
+            final boolean lengthsOnly) throws RepositoryException {
+        final String workspace = local.getSession().getWorkspace().getName();
+        final Session remote = JcrWrapper.openSession(server, workspace);
+        try {
+            final Node remoteNode = (Node) remote.getItem(local.getPath());
+            final Object[] remoteResult = new Object[1];
+            Thread remoteHasher = new Thread("hash-remote") {
+                public void run() {
+                    try {
+                        remoteResult[0] = new Tree(depth, threads, lengthsOnly).compute(remoteNode,
+                                new ParallelWalker.SessionProvider() {
+                                    public Session borrow() throws RepositoryException {
+                                        return JcrWrapper.openSession(server, workspace);
+                                    }
+
+                                    public void release(final Session session) {
+                                        if (session != null) {
+                                            session.logout();
+                                        }
+                                    }
+                                });
+                    } catch (RepositoryException e) {
+                        remoteResult[0] = e;
+                    }
+                }
+            };
+            remoteHasher.setDaemon(true);
+            remoteHasher.start();
+            SortedMap<String, String> localDigests = new Tree(depth, threads, lengthsOnly).compute(local, null);
+            remoteHasher.join();
+            if (remoteResult[0] instanceof RepositoryException) {
+                throw (RepositoryException) remoteResult[0];
+            }
+            @SuppressWarnings("unchecked")
+            SortedMap<String, String> remoteDigests = (SortedMap<String, String>) remoteResult[0];
+            compare(localDigests, remoteDigests);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            remote.logout();
+        }
+    }
+
+    private boolean compareFiles(final String fileA, final String fileB) {
+        try {
+            compare(read(fileA), read(fileB));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to read hash file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private SortedMap<String, String> read(final String file) throws IOException {
+        SortedMap<String, String> digests = new TreeMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > HEX_LENGTH + 2) {
+                    digests.put(line.substring(HEX_LENGTH + 2), line.substring(0, HEX_LENGTH));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return digests;
+    }
+
+    /**
+     * Compare two digest trees top down, only descending into subtrees with different digests.
+     * A node whose recorded child nodes are all equal differs in its own properties or below
+     * the recorded depth.
+     */
+    private void compare(final SortedMap<String, String> a, final SortedMap<String, String> b) {
+        long[] differences = new long[1];
+        compare(".", a, b, differences);
+        Terminal.println("Differences: " + differences[0]);
+    }
+
+    private void compare(final String rel, final SortedMap<String, String> a, final SortedMap<String, String> b,
+            final long[] differences) {
+        String digestA = a.get(rel);
+        String digestB = b.get(rel);
+        if (digestA == null || digestB == null) {
+            System.out.println(((digestA == null) ? "+ " : "- ") + rel);
+            differences[0]++;
+            return;
+        }
+        if (digestA.equals(digestB)) {
+            return;
+        }
+        SortedMap<String, Boolean> children = new TreeMap<String, Boolean>();
+        addChildren(rel, a, children);
+        addChildren(rel, b, children);
+        boolean childDiffers = false;
+        for (String child : children.keySet()) {
+            String childA = a.get(child);
+            if (childA == null || !childA.equals(b.get(child))) {
+                childDiffers = true;
+                compare(child, a, b, differences);
+            }
+        }
+        if (!childDiffers) {
+            System.out.println("~ " + rel);
+            differences[0]++;
+        }
+    }
+
+    private void addChildren(final String rel, final SortedMap<String, String> digests,
+            final SortedMap<String, Boolean> children) {
+        String prefix = ".".equals(rel) ? "" : rel + "/";
+        SortedMap<String, String> tail = digests.tailMap(prefix);
+        for (String key : tail.keySet()) {
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (key.length() > prefix.length() && !".".equals(key) && key.indexOf('/', prefix.length()) < 0) {
+                children.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Computes the digests of a subtree with the parallel walker. Every subtree below the
+     * split depth is hashed bottom up by a worker, the nodes above it are combined afterwards.
+     */
+    private static final class Tree {
+        private final int depth;
+        private final int threads;
+        private final boolean lengthsOnly;
+
+        private Tree(final int depth, final int threads, final boolean lengthsOnly) {
+            this.depth = Math.max(0, depth);
+            this.threads = threads;
+            this.lengthsOnly = lengthsOnly;
+        }
+
+        private SortedMap<String, String> compute(final Node root, final ParallelWalker.SessionProvider sessions)
+                throws RepositoryException {
+            final String rootPath = root.getPath();
+            final int splitDepth = Math.min(1, depth);
+            ParallelWalker<Hasher> walker = new ParallelWalker<Hasher>(new ParallelWalker.VisitorFactory<Hasher>() {
+                public Hasher newVisitor(final String path) {
+                    return new Hasher(rootPath, splitDepth, depth, lengthsOnly);
+                }
+            }, threads, splitDepth);
+            if (sessions != null) {
+                walker.setSessionProvider(sessions);
+            }
+            SortedMap<String, Hasher> partitions = walker.walk(root);
+            if (walker.getErrors() > 0) {
+                Terminal.println("Errors: " + walker.getErrors() + ", digests are incomplete");
+            }
+
+            Map<String, byte[]> digests = new HashMap<String, byte[]>();
+            List<Hasher> above = new ArrayList<Hasher>();
+            for (Hasher hasher : partitions.values()) {
+                if (hasher.childNames == null) {
+                    digests.putAll(hasher.digests);
+                } else {
+                    above.add(hasher);
+                }
+            }
+            // combine the nodes above the split depth, deepest first
+            Collections.sort(above, new Comparator<Hasher>() {
+                public int compare(final Hasher h1, final Hasher h2) {
+                    return h2.depth - h1.depth;
+                }
+            });
+            MessageDigest md = Hasher.newDigest();
+            for (Hasher hasher : above) {
+                md.reset();
+                md.update(hasher.own);
+                for (String name : hasher.childNames) {
+                    byte[] child = digests.get(Hasher.child(hasher.rel, name));
+                    if (child != null) {
+                        Hasher.update(md, name);
+                        md.update(child);
+                    }
+                }
+                digests.put(hasher.rel, md.digest());
+            }
+
+            SortedMap<String, String> result = new TreeMap<String, String>();
+            for (Map.Entry<String, byte[]> entry : digests.entrySet()) {
+                if (Hasher.depth(entry.getKey()) <= depth) {
+                    result.put(entry.getKey(), Hasher.hex(entry.getValue()));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Visitor for one partition. Above the split depth it only records the digest of the
+     * node's own content and its child names, at the split depth it hashes the whole subtree.
+     */
+    private static final class Hasher implements ParallelWalker.Visitor {
+        private final String rootPath;
+        private final int splitDepth;
+        private final int storeDepth;
+        private final boolean lengthsOnly;
+        private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+        private final List<MessageDigest> levels = new ArrayList<MessageDigest>();
+        private final MessageDigest content = newDigest();
+        private final MessageDigest binaryDigest = newDigest();
+        private final byte[] buffer = new byte[8192];
+        private String rel;
+        private int depth;
+        private byte[] own;
+        private List<String> childNames;
+
+        private Hasher(final String rootPath, final int splitDepth, final int storeDepth, final boolean lengthsOnly) {
+            this.rootPath = rootPath;
+            this.splitDepth = splitDepth;
+            this.storeDepth = storeDepth;
+            this.lengthsOnly = lengthsOnly;
+        }
+
+        public boolean visit(final Node node, final int nodeDepth) throws RepositoryException {
+            rel = relative(node.getPath());
+            depth = nodeDepth;
+            if (nodeDepth < splitDepth) {
+                own = ownDigest(node);
+                childNames = new ArrayList<String>();
+                NodeIterator iter = node.getNodes();
+                while (iter.hasNext()) {
+                    childNames.add(JcrWrapper.fullName(iter.nextNode()));
+                }
+                return true;
+            }
+            hashSubtree(node, rel, nodeDepth);
+            return false;
+        }
+
+        private byte[] hashSubtree(final Node node, final String nodeRel, final int nodeDepth)
+                throws RepositoryException {
+            byte[] ownDigest = ownDigest(node);
+            while (levels.size() <= nodeDepth) {
+                levels.add(newDigest());
+            }
+            MessageDigest md = levels.get(nodeDepth);
+            md.reset();
+            md.update(ownDigest);
+            NodeIterator iter = node.getNodes();
+            while (iter.hasNext()) {
+                Node child = iter.nextNode();
+                String name = JcrWrapper.fullName(child);
+                byte[] childDigest = hashSubtree(child, child(nodeRel, name), nodeDepth + 1);
+                update(md, name);
+                md.update(childDigest);
+            }
+            byte[] digest = md.digest();
+            if (nodeDepth <= storeDepth) {
+                digests.put(nodeRel, digest);
+            }
+            return digest;
+        }
+
+        /**
+         * Digest of the properties of the node, in name order.
+         */
+        private byte[] ownDigest(final Node node) throws RepositoryException {
+            SortedMap<String, Property> properties = new TreeMap<String, Property>();
+            PropertyIterator iter = node.getProperties();
+            while (iter.hasNext()) {
+                Property p = iter.nextProperty();
+                if (!IGNORED.contains(p.getName())) {
+                    properties.put(p.getName(), p);
+                }
+            }
+            content.reset();
+            for (Property p : properties.values()) {
+                update(content, p.getName());
+                update(content, PropertyType.nameFromValue(p.getType()));
+                Value[] values = p.isMultiple() ? p.getValues() : new Value[] { p.getValue() };
+                update(content, String.valueOf(values.length));
+                if (p.getType() == PropertyType.BINARY) {
+                    long[] lengths = p.isMultiple() ? p.getLengths() : new long[] { p.getLength() };
+                    for (int i = 0; i < values.length; i++) {
+                        update(content, String.valueOf(lengths[i]));
+                        if (!lengthsOnly) {
+                            content.update(hashBinary(values[i]));
+                        }
+                    }
+                } else {
+                    for (Value value : values) {
+                        update(content, value.getString());
+                    }
+                }
+            }
+            return content.digest();
+        }
+
+        private byte[] hashBinary(final Value value) throws RepositoryException {
+            Binary binary = value.getBinary();
+            InputStream in = null;
+            try {
+                binaryDigest.reset();
+                in = binary.getStream();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    binaryDigest.update(buffer, 0, read);
+                }
+                return binaryDigest.digest();
+            } catch (IOException e) {
+                throw new RepositoryException("Unable to read binary: " + e.getMessage(), e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                binary.dispose();
+            }
+        }
+
+        private String relative(final String path) {
+            if (path.equals(rootPath)) {
+                return ".";
+            }
+            return path.substring("/".equals(rootPath) ? 1 : rootPath.length() + 1);
+        }
+
+        /**
+         * Length prefixed, so different splits of the same characters give different digests.
+         */
+        private static void update(final MessageDigest md, final String value) {
+            try {
+                byte[] bytes = value.getBytes("UTF-8");
+                int length = bytes.length;
+                md.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                        (byte) length });
+                md.update(bytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        private static String child(final String rel, final String name) {
+            return ".".equals(rel) ? name : rel + "/" + name;
+        }
+
+        private static int depth(final String rel) {
+            if (".".equals(rel)) {
+                return 0;
+            }
+            int count = 1;
+            for (int i = 0; i < rel.length(); i++) {
+                if (rel.charAt(i) == '/') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static String hex(final byte[] digest) {
+            StringBuilder buf = new StringBuilder(HEX_LENGTH);
+            for (byte b : digest) {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        }
+    }
+}
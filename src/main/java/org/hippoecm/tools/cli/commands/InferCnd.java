@@ -0,0 +1,717 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeDefinition;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.version.OnParentVersionAction;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrCompactNodeTypeDefWriter;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+
+/**
+ * Propose node type definitions for the residual properties and child nodes in a subtree.
+ */
+public class InferCnd implements Command {
+
+    /** default prefix of the proposed node types. */
+    private static final String DEFAULT_PREFIX = "inferred";
+
+    /** namespace uri of the proposed node types when the prefix is not registered, the prefix is appended. */
+    private static final String DEFAULT_URI = "urn:jcr-shell:inferred:";
+
+    /** prefixes every repository knows, they are not declared. */
+    private static final List<String> BUILTIN_PREFIXES = Arrays.asList(new String[] { "jcr", "nt", "mix", "xml",
+            "sv" });
+
+    /** maximum number of shapes, nodes of further names are counted in the shape of their type. */
+    private static final int MAX_SHAPES = 1000;
+
+    /** maximum number of named properties or child nodes per shape, further names are residual. */
+    private static final int MAX_ITEMS = 200;
+
+    /** maximum number of child shapes kept per child node name. */
+    private static final int MAX_CHILD_SHAPES = 8;
+
+    /** name of residual definitions and shapes. */
+    private static final String RESIDUAL = "*";
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "infercnd";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "infer-cnd" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "infercnd [-p <prefix>] [-u <uri>] [-f <percent>] [-m <nodes>] [--by-type] [-t <threads>] <path> "
+                + "[> <file>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "propose a cnd for the residual items of the nodes in a subtree, one type per node name and type "
+                + "(--by-type: per type) seen at least -m times (default 2). Items in less than -f percent "
+                + "of the nodes (default 0) are left to a residual definition. The output declares the namespace of "
+                + "the prefix, -u sets its uri, and the other namespaces of the repository";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String prefix = DEFAULT_PREFIX;
+        String uri = null;
+        double minFrequency = 0;
+        long minNodes = 2;
+        boolean byType = false;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-p".equals(args[i]) && i + 1 < args.length) {
+                    prefix = args[++i];
+                } else if ("-u".equals(args[i]) && i + 1 < args.length) {
+                    uri = args[++i];
+                } else if ("-f".equals(args[i]) && i + 1 < args.length) {
+                    minFrequency = Double.parseDouble(args[++i]) / 100.0;
+                } else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                    minNodes = Long.parseLong(args[++i]);
+                } else if ("--by-type".equals(args[i])) {
+                    byType = true;
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (path == null) {
+            System.out.println(usage());
+            System.out.println(help());
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+
+        final boolean shapeByType = byType;
+        ParallelWalker<Collector> walker = new ParallelWalker<Collector>(
+                new ParallelWalker.VisitorFactory<Collector>() {
+                    public Collector newVisitor(final String path) {
+                        return new Collector(shapeByType);
+                    }
+                }, threads, 1);
+
+        final Map<String, Shape> shapes = new HashMap<String, Shape>();
+        try {
+            // merge every partition when it is done, the collectors are not kept
+            walker.walk(node, new ParallelWalker.Merger<Collector>() {
+                public void merge(final String path, final Collector collector) {
+                    for (Shape shape : collector.shapes.values()) {
+                        Shape total = shapes.get(shape.key);
+                        if (total == null) {
+                            shapes.put(shape.key, shape);
+                        } else {
+                            total.merge(shape);
+                        }
+                    }
+                }
+            });
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+
+        List<Shape> selected = new ArrayList<Shape>();
+        for (Shape shape : shapes.values()) {
+            if (shape.nodes >= minNodes) {
+                selected.add(shape);
+            }
+        }
+        Collections.sort(selected, new Comparator<Shape>() {
+            public int compare(final Shape s1, final Shape s2) {
+                if (s1.nodes != s2.nodes) {
+                    return (s1.nodes > s2.nodes) ? -1 : 1;
+                }
+                return s1.key.compareTo(s2.key);
+            }
+        });
+        Map<String, String> typeNames = typeNames(selected, prefix);
+
+        printNamespaces(prefix, uri);
+        JcrCompactNodeTypeDefWriter writer = new JcrCompactNodeTypeDefWriter(System.out);
+        try {
+            for (Shape shape : selected) {
+                System.out.println("// " + shape.nodes + " nodes of type " + shape.primaryType
+                        + (shape.mixins.length() > 0 ? " with " + shape.mixins : "") + ", e.g. " + shape.example);
+                for (Map.Entry<String, Item> entry : shape.properties.entrySet()) {
+                    System.out.printf("//   - %s %.1f%%\n", entry.getKey(), 100.0 * entry.getValue().count
+                            / shape.nodes);
+                }
+                for (Map.Entry<String, Item> entry : shape.children.entrySet()) {
+                    System.out.printf("//   + %s %.1f%%\n", entry.getKey(), 100.0 * entry.getValue().count
+                            / shape.nodes);
+                }
+                System.out.flush();
+                writer.printNodeTypeDef(shape.define(typeNames.get(shape.key), typeNames, minFrequency));
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        if (walker.getErrors() > 0) {
+            System.out.println("// Errors: " + walker.getErrors());
+        }
+        return true;
+    }
+
+    /**
+     * Declare the namespace of the proposed types and the namespaces they may refer to, so the
+     * output can be registered as is.
+     */
+    private void printNamespaces(final String prefix, final String uri) {
+        String typesUri = uri;
+        for (Map.Entry<String, String> entry : JcrWrapper.getNamespaces().entrySet()) {
+            String registered = entry.getValue();
+            if (registered.equals(prefix)) {
+                if (typesUri == null) {
+                    typesUri = entry.getKey();
+                }
+            } else if (registered.length() > 0 && !BUILTIN_PREFIXES.contains(registered)) {
+                System.out.println("<" + registered + " = '" + JcrCompactNodeTypeDefWriter.escape(entry.getKey())
+                        + "'>");
+            }
+        }
+        if (typesUri == null) {
+            typesUri = DEFAULT_URI + prefix;
+        }
+        System.out.println("<" + prefix + " = '" + JcrCompactNodeTypeDefWriter.escape(typesUri) + "'>");
+        System.out.println();
+    }
+
+    /**
+     * Give every shape a unique type name.
+     */
+    private Map<String, String> typeNames(final List<Shape> shapes, final String prefix) {
+        Map<String, String> names = new HashMap<String, String>();
+        Set<String> used = new HashSet<String>();
+        for (Shape shape : shapes) {
+            String local = RESIDUAL.equals(shape.name) ? shape.primaryType : shape.name;
+            local = local.substring(local.indexOf(':') + 1).replaceAll("[^A-Za-z0-9_.-]", "_");
+            String name = prefix + ":" + local;
+            for (int i = 2; used.contains(name); i++) {
+                name = prefix + ":" + local + i;
+            }
+            used.add(name);
+            names.put(shape.key, name);
+        }
+        return names;
+    }
+
+    private static String shapeKey(final String primaryType, final String mixins, final String name) {
+        return primaryType + "|" + mixins + "|" + name;
+    }
+
+    /**
+     * Counters of one property name or child node name.
+     */
+    private static final class Item {
+        /** number of nodes having the item. */
+        private long count;
+        /** property types seen, as bits. */
+        private int types;
+        private boolean single;
+        private boolean multiple;
+        private final Set<String> childShapes = new HashSet<String>();
+        private boolean moreChildShapes;
+
+        private void merge(final Item other) {
+            count += other.count;
+            types |= other.types;
+            single |= other.single;
+            multiple |= other.multiple;
+            for (String childShape : other.childShapes) {
+                addChildShape(childShape);
+            }
+            moreChildShapes |= other.moreChildShapes;
+        }
+
+        private void addChildShape(final String childShape) {
+            if (childShapes.size() < MAX_CHILD_SHAPES || childShapes.contains(childShape)) {
+                childShapes.add(childShape);
+            } else {
+                moreChildShapes = true;
+            }
+        }
+
+        private int requiredType() {
+            int type = PropertyType.UNDEFINED;
+            for (int t = 0; t < Integer.SIZE; t++) {
+                if ((types & (1 << t)) != 0) {
+                    if (type != PropertyType.UNDEFINED) {
+                        return PropertyType.UNDEFINED;
+                    }
+                    type = t;
+                }
+            }
+            return type;
+        }
+    }
+
+    /**
+     * Counters of the nodes with the same type, mixins and, unless grouped by type, name.
+     */
+    private static final class Shape {
+        private final String key;
+        private final String primaryType;
+        private final String mixins;
+        private final String name;
+        private final boolean orderable;
+        private final String example;
+        private long nodes;
+        private final Map<String, Item> properties = new LinkedHashMap<String, Item>();
+        private final Map<String, Item> children = new LinkedHashMap<String, Item>();
+
+        private Shape(final String key, final String primaryType, final String mixins, final String name,
+                final boolean orderable, final String example) {
+            this.key = key;
+            this.primaryType = primaryType;
+            this.mixins = mixins;
+            this.name = name;
+            this.orderable = orderable;
+            this.example = example;
+        }
+
+        private Item item(final Map<String, Item> items, final String itemName) {
+            Item item = items.get(itemName);
+            if (item == null) {
+                String itemKey = (items.size() < MAX_ITEMS) ? itemName : RESIDUAL;
+                item = items.get(itemKey);
+                if (item == null) {
+                    item = new Item();
+                    items.put(itemKey, item);
+                }
+            }
+            return item;
+        }
+
+        private void merge(final Shape other) {
+            nodes += other.nodes;
+            for (Map.Entry<String, Item> entry : other.properties.entrySet()) {
+                item(properties, entry.getKey()).merge(entry.getValue());
+            }
+            for (Map.Entry<String, Item> entry : other.children.entrySet()) {
+                item(children, entry.getKey()).merge(entry.getValue());
+            }
+        }
+
+        /**
+         * Build the proposed definition. Items below the minimum frequency are folded into the residual ones.
+         */
+        private NodeTypeDefinition define(final String typeName, final Map<String, String> typeNames,
+                final double minFrequency) {
+            List<String> supertypes = new ArrayList<String>();
+            supertypes.add("nt:unstructured".equals(primaryType) ? "nt:base" : primaryType);
+            if (mixins.length() > 0) {
+                for (String mixin : mixins.split(",")) {
+                    supertypes.add(mixin);
+                }
+            }
+
+            List<PropertyDefinition> propDefs = new ArrayList<PropertyDefinition>();
+            Item residual = null;
+            for (Map.Entry<String, Item> entry : properties.entrySet()) {
+                Item item = entry.getValue();
+                if (RESIDUAL.equals(entry.getKey()) || (double) item.count / nodes < minFrequency) {
+                    if (residual == null) {
+                        residual = new Item();
+                    }
+                    residual.merge(item);
+                } else {
+                    propDefs.add(new InferredProperty(entry.getKey(), item.requiredType(), item.multiple,
+                            item.count == nodes));
+                }
+            }
+            if (residual != null) {
+                if (residual.single || !residual.multiple) {
+                    propDefs.add(new InferredProperty(RESIDUAL, residual.requiredType(), false, false));
+                }
+                if (residual.multiple) {
+                    propDefs.add(new InferredProperty(RESIDUAL, residual.requiredType(), true, false));
+                }
+            }
+
+            List<NodeDefinition> nodeDefs = new ArrayList<NodeDefinition>();
+            residual = null;
+            for (Map.Entry<String, Item> entry : children.entrySet()) {
+                Item item = entry.getValue();
+                if (RESIDUAL.equals(entry.getKey()) || (double) item.count / nodes < minFrequency) {
+                    if (residual == null) {
+                        residual = new Item();
+                    }
+                    residual.merge(item);
+                } else {
+                    nodeDefs.add(new InferredChild(entry.getKey(), requiredTypes(item, typeNames),
+                            item.count == nodes, item.multiple));
+                }
+            }
+            if (residual != null) {
+                nodeDefs.add(new InferredChild(RESIDUAL, requiredTypes(residual, typeNames), false, true));
+            }
+            return new InferredType(typeName, supertypes.toArray(new String[supertypes.size()]), orderable,
+                    propDefs.toArray(new PropertyDefinition[propDefs.size()]), nodeDefs
+                            .toArray(new NodeDefinition[nodeDefs.size()]));
+        }
+
+        /**
+         * The proposed types of the child shapes, or nt:base when they are too many or not proposed.
+         */
+        private String[] requiredTypes(final Item item, final Map<String, String> typeNames) {
+            if (item.moreChildShapes) {
+                return new String[] { "nt:base" };
+            }
+            List<String> types = new ArrayList<String>();
+            for (String childShape : item.childShapes) {
+                String type = typeNames.get(childShape);
+                if (type == null) {
+                    return new String[] { "nt:base" };
+                }
+                types.add(type);
+            }
+            if (types.size() != 1) {
+                // more than one required type means all of them, which no child satisfies
+                return new String[] { "nt:base" };
+            }
+            return types.toArray(new String[types.size()]);
+        }
+    }
+
+    /**
+     * Collects the shapes of a partition of the walk. Only residual items are counted, items that
+     * are defined by the type or a mixin of the node need no proposal.
+     */
+    private static final class Collector implements ParallelWalker.Visitor {
+        private final boolean byType;
+        private final Map<String, Shape> shapes = new HashMap<String, Shape>();
+        private final Map<String, int[]> seen = new HashMap<String, int[]>();
+
+        private Collector(final boolean byType) {
+            this.byType = byType;
+        }
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            Shape shape = shape(node);
+            shape.nodes++;
+
+            PropertyIterator props = node.getProperties();
+            while (props.hasNext()) {
+                Property p = props.nextProperty();
+                if (RESIDUAL.equals(p.getDefinition().getName())) {
+                    Item item = shape.item(shape.properties, p.getName());
+                    item.count++;
+                    item.types |= 1 << p.getType();
+                    if (p.isMultiple()) {
+                        item.multiple = true;
+                    } else {
+                        item.single = true;
+                    }
+                }
+            }
+
+            seen.clear();
+            NodeIterator iter = node.getNodes();
+            while (iter.hasNext()) {
+                Node child = iter.nextNode();
+                if (!RESIDUAL.equals(child.getDefinition().getName())) {
+                    continue;
+                }
+                Item item = shape.item(shape.children, child.getName());
+                int[] count = seen.get(child.getName());
+                if (count == null) {
+                    seen.put(child.getName(), new int[] { 1 });
+                    item.count++;
+                } else if (++count[0] == 2) {
+                    item.multiple = true;
+                }
+                item.addChildShape(shape(child).key);
+            }
+            return true;
+        }
+
+        /**
+         * Find or create the shape of a node, without counting the node.
+         */
+        private Shape shape(final Node node) throws RepositoryException {
+            String primaryType = node.getProperty("jcr:primaryType").getString();
+            StringBuilder mixins = new StringBuilder();
+            if (node.hasProperty("jcr:mixinTypes")) {
+                for (Value value : node.getProperty("jcr:mixinTypes").getValues()) {
+                    if (mixins.length() > 0) {
+                        mixins.append(',');
+                    }
+                    mixins.append(value.getString());
+                }
+            }
+            String name = (byType || node.getDepth() == 0) ? RESIDUAL : node.getName();
+            String key = shapeKey(primaryType, mixins.toString(), name);
+            Shape shape = shapes.get(key);
+            if (shape == null && shapes.size() >= MAX_SHAPES) {
+                name = RESIDUAL;
+                key = shapeKey(primaryType, mixins.toString(), name);
+                shape = shapes.get(key);
+            }
+            if (shape == null) {
+                NodeType type = node.getPrimaryNodeType();
+                shape = new Shape(key, primaryType, mixins.toString(), name, type.hasOrderableChildNodes(), node
+                        .getPath());
+                shapes.put(key, shape);
+            }
+            return shape;
+        }
+    }
+
+    /**
+     * Proposed node type.
+     */
+    private static final class InferredType implements NodeTypeDefinition {
+        private final String name;
+        private final String[] supertypes;
+        private final boolean orderable;
+        private final PropertyDefinition[] propDefs;
+        private final NodeDefinition[] nodeDefs;
+
+        private InferredType(final String name, final String[] supertypes, final boolean orderable,
+                final PropertyDefinition[] propDefs, final NodeDefinition[] nodeDefs) {
+            this.name = name;
+            this.supertypes = supertypes;
+            this.orderable = orderable;
+            this.propDefs = propDefs;
+            this.nodeDefs = nodeDefs;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getDeclaredSupertypeNames() {
+            return supertypes;
+        }
+
+        public boolean isAbstract() {
+            return false;
+        }
+
+        public boolean isMixin() {
+            return false;
+        }
+
+        public boolean hasOrderableChildNodes() {
+            return orderable;
+        }
+
+        public boolean isQueryable() {
+            return true;
+        }
+
+        public String getPrimaryItemName() {
+            return null;
+        }
+
+        public PropertyDefinition[] getDeclaredPropertyDefinitions() {
+            return propDefs;
+        }
+
+        public NodeDefinition[] getDeclaredChildNodeDefinitions() {
+            return nodeDefs;
+        }
+    }
+
+    /**
+     * Proposed property definition.
+     */
+    private static final class InferredProperty implements PropertyDefinition {
+        private final String name;
+        private final int type;
+        private final boolean multiple;
+        private final boolean mandatory;
+
+        private InferredProperty(final String name, final int type, final boolean multiple, final boolean mandatory) {
+            this.name = name;
+            this.type = type;
+            this.multiple = multiple;
+            this.mandatory = mandatory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRequiredType() {
+            return type;
+        }
+
+        public boolean isMultiple() {
+            return multiple;
+        }
+
+        public boolean isMandatory() {
+            return mandatory;
+        }
+
+        public String[] getValueConstraints() {
+            return null;
+        }
+
+        public Value[] getDefaultValues() {
+            return null;
+        }
+
+        public String[] getAvailableQueryOperators() {
+            return new String[0];
+        }
+
+        public boolean isFullTextSearchable() {
+            return true;
+        }
+
+        public boolean isQueryOrderable() {
+            return true;
+        }
+
+        public NodeType getDeclaringNodeType() {
+            return null;
+        }
+
+        public boolean isAutoCreated() {
+            return false;
+        }
+
+        public int getOnParentVersion() {
+            return OnParentVersionAction.COPY;
+        }
+
+        public boolean isProtected() {
+            return false;
+        }
+    }
+
+    /**
+     * Proposed child node definition.
+     */
+    private static final class InferredChild implements NodeDefinition {
+        private final String name;
+        private final String[] requiredTypes;
+        private final boolean mandatory;
+        private final boolean sameNameSiblings;
+
+        private InferredChild(final String name, final String[] requiredTypes, final boolean mandatory,
+                final boolean sameNameSiblings) {
+            this.name = name;
+            this.requiredTypes = requiredTypes;
+            this.mandatory = mandatory;
+            this.sameNameSiblings = sameNameSiblings;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getRequiredPrimaryTypeNames() {
+            return requiredTypes;
+        }
+
+        public NodeType[] getRequiredPrimaryTypes() {
+            return null;
+        }
+
+        public String getDefaultPrimaryTypeName() {
+            return null;
+        }
+
+        public NodeType getDefaultPrimaryType() {
+            return null;
+        }
+
+        public boolean allowsSameNameSiblings() {
+            return sameNameSiblings;
+        }
+
+        public boolean isMandatory() {
+            return mandatory;
+        }
+
+        public NodeType getDeclaringNodeType() {
+            return null;
+        }
+
+        public boolean isAutoCreated() {
+            return false;
+        }
+
+        public int getOnParentVersion() {
+            return OnParentVersionAction.COPY;
+        }
+
+        public boolean isProtected() {
+            return false;
+        }
+    }
+}
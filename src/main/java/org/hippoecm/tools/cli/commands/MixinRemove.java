@@ -75,6 +75,7 @@ public class MixinRemove implements Command {
             node.removeMixin(mixinName);
             //TODO, shouldn't be handling cache inside command, move to JcrWrapper
             JcrWrapper.removeFromCache(node.getPath());
+            JcrWrapper.changed(mixinName.length());
         } catch (RepositoryException e) {
             System.out.println("Failed to remove mixin: " + e.getMessage());
             return false;
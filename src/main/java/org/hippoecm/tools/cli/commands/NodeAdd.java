@@ -82,6 +82,7 @@ public class NodeAdd implements Command {
 
         if (JcrWrapper.addNode(node, nodeName, nodeType)) {
             System.out.println("Node '" + nodeName + "' added.");
+            JcrWrapper.changed(nodeName.length() + nodeType.length());
         } else {
             System.out.println("Failed to add node: " + nodeName);
         }
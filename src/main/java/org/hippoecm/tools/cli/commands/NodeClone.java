@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+
+/**
+ * Clone a node from another workspace.
+ */
+public class NodeClone implements Command {
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "nodeclone";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "clonenode", "clone" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "nodeclone [--remove-existing] <workspace> <nodename> [[<path>/]<new nodename>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "clone workspace node [target]: clone a node of another workspace to target, by default to the "
+                + "same path. The clone keeps the identifiers of the nodes, --remove-existing replaces nodes "
+                + "with the same identifiers. The repository clones the subtree in one call and the clone is saved "
+                + "immediately";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        boolean removeExisting = false;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            if ("--remove-existing".equals(args[i])) {
+                removeExisting = true;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2 && paths.size() != 3) {
+            System.out.println(usage());
+            System.out.println(help());
+            return false;
+        }
+
+        Node node = JcrWrapper.getCurrentNode();
+        if (node == null) {
+            return false;
+        }
+
+        String dest = null;
+        try {
+            String src = NodeMove.absolutePath(node, paths.get(1));
+            dest = (paths.size() == 3) ? NodeMove.absolutePath(node, paths.get(2)) : src;
+            JcrWrapper.workspaceClone(paths.get(0), src, dest, removeExisting);
+            System.out.println("Node cloned to " + dest);
+        } catch (ItemExistsException e) {
+            System.out.println("Target or identifier already exists: " + e.getMessage());
+            return false;
+        } catch (PathNotFoundException e) {
+            System.out.println("Not found: " + e.getMessage());
+            return false;
+        } catch (RepositoryException e) {
+            System.out.println("Failed to clone node: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+
+/**
+ * Copy a node with the workspace.
+ */
+public class NodeCopy implements Command {
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "nodecopy";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "nodecp", "copynode", "cp" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "nodecopy [-w <workspace>] <nodename> [<path>/]<new nodename>";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "nodecp node target: copy node to target, or from the same path in another workspace with -w. "
+                + "The repository copies the subtree in one call and the copy is saved immediately";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String srcWorkspace = null;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            if ("-w".equals(args[i]) && i + 1 < args.length) {
+                srcWorkspace = args[++i];
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2) {
+            System.out.println(usage());
+            System.out.println(help());
+            return false;
+        }
+
+        Node node = JcrWrapper.getCurrentNode();
+        if (node == null) {
+            return false;
+        }
+
+        String dest = null;
+        try {
+            String src = NodeMove.absolutePath(node, paths.get(0));
+            dest = NodeMove.absolutePath(node, paths.get(1));
+            JcrWrapper.workspaceCopy(srcWorkspace, src, dest);
+            System.out.println("Node copied to " + dest);
+        } catch (ItemExistsException e) {
+            System.out.println("Target already exists: " + dest);
+            return false;
+        } catch (PathNotFoundException e) {
+            System.out.println("Not found: " + e.getMessage());
+            return false;
+        } catch (RepositoryException e) {
+            System.out.println("Failed to copy node: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
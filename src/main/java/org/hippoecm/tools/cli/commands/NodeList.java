@@ -15,12 +15,30 @@
  */
 package org.hippoecm.tools.cli.commands;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
 
 import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.ExternalSorter;
 import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.NodeMetadata;
+import org.hippoecm.tools.cli.Terminal;
 
 /**
  * List child nodes of current node.
@@ -45,14 +63,15 @@ public class NodeList implements Command {
      * {@inheritDoc}
      */
     public final String usage() {
-        return "ls [<path>]";
+        return "ls [-l] [--sort <name|type|property> [--reverse] [--top <n>]] [--offset <n>] [--limit <n>] "
+                + "[--page <n>] [--count] [--total] [<path>]";
     }
 
     /**
      * {@inheritDoc}
      */
     public final String help() {
-        return "list child nodes of the current node";
+        return "list child nodes of the current node, -l shows details, --page shows n nodes at a time";
     }
 
     /**
@@ -69,36 +88,353 @@ public class NodeList implements Command {
             return false;
         }
 
+        long offset = 0;
+        long limit = -1;
+        long page = -1;
+        boolean countOnly = false;
+        boolean total = false;
+        boolean longFormat = false;
+        String sortKey = null;
+        boolean reverse = false;
+        int top = -1;
         StringBuilder path = new StringBuilder();
-        for (int i = 1; i < args.length; i++) {
-            if (i > 1) {
-                path.append(" ");
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("--offset".equals(args[i]) && i + 1 < args.length) {
+                    offset = Long.parseLong(args[++i]);
+                } else if ("--limit".equals(args[i]) && i + 1 < args.length) {
+                    limit = Long.parseLong(args[++i]);
+                } else if ("--page".equals(args[i]) && i + 1 < args.length) {
+                    page = Long.parseLong(args[++i]);
+                } else if ("--count".equals(args[i])) {
+                    countOnly = true;
+                } else if ("--total".equals(args[i])) {
+                    total = true;
+                } else if ("-l".equals(args[i])) {
+                    longFormat = true;
+                } else if ("--sort".equals(args[i]) && i + 1 < args.length) {
+                    sortKey = args[++i];
+                } else if ("--reverse".equals(args[i])) {
+                    reverse = true;
+                } else if ("--top".equals(args[i]) && i + 1 < args.length) {
+                    top = Integer.parseInt(args[++i]);
+                } else {
+                    if (path.length() > 0) {
+                        path.append(" ");
+                    }
+                    path.append(args[i]);
+                }
             }
-            path.append(args[i]);
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
         }
 
-        NodeIterator iter = JcrWrapper.getNodes(path.toString());
-        if (iter == null) {
+        Node parent = JcrWrapper.getNode(path.toString());
+        if (parent == null) {
             System.out.println("Path not found: " + path);
             return false;
         }
+        Session worker = null;
         try {
-            System.out.printf("%-40s%s\n", "Name", "Type");
-            System.out.printf("%-40s%s\n", "--------------------", "--------------------");
-            while (iter.hasNext()) {
+            NodeIterator iter;
+            if (longFormat && !countOnly && !parent.getSession().hasPendingChanges()) {
+                // a worker session reads the parent with the child node states in one batch
+                worker = JcrWrapper.borrowWorkerSession();
+                iter = ((Node) worker.getItem(parent.getPath())).getNodes();
+            } else {
+                iter = parent.getNodes();
+            }
+            if (countOnly) {
+                printCount(iter);
+                return true;
+            }
+            if (sortKey != null || top > 0) {
+                listSorted(iter, (sortKey == null) ? "name" : sortKey, reverse, top, offset, limit, page);
+                return true;
+            }
+            if (offset > 0) {
+                try {
+                    iter.skip(offset);
+                } catch (NoSuchElementException e) {
+                    System.out.println("Offset beyond last child node: " + offset);
+                    return true;
+                }
+            }
+            printHeader(longFormat);
+            long shown = 0;
+            long pageRows = 0;
+            while (iter.hasNext() && (limit < 0 || shown < limit)) {
+                if (page > 0 && pageRows == page) {
+                    if (!morePages()) {
+                        break;
+                    }
+                    pageRows = 0;
+                }
                 Node n = iter.nextNode();
-                //if (JcrWrapper.isVirtual(n)) {
-                //    System.out.printf("%-40s%s\n", JcrWrapper.fullName(n) + "*", n.getPrimaryNodeType().getName());
-                //} else {
-                    System.out.printf("%-40s%s\n", JcrWrapper.fullName(n), n.getPrimaryNodeType().getName());
-                //}
+                if (longFormat) {
+                    printLong(JcrWrapper.getNodeMetadata(n));
+                } else {
+                    //if (JcrWrapper.isVirtual(n)) {
+                    //    System.out.printf("%-40s%s\n", JcrWrapper.fullName(n) + "*",
+                    //            n.getPrimaryNodeType().getName());
+                    //} else {
+                        System.out.printf("%-40s%s\n", JcrWrapper.fullName(n), n.getPrimaryNodeType().getName());
+                    //}
+                }
+                shown++;
+                pageRows++;
+            }
+            printSeparator(longFormat);
+            if (!iter.hasNext()) {
+                // walked to the end, the position is the exact count
+                System.out.printf("Total: %s\n", iter.getPosition());
+            } else if (total) {
+                long size = iter.getSize();
+                if (size < 0) {
+                    System.out.printf("Total: more than %s (estimate)\n", iter.getPosition());
+                } else {
+                    System.out.printf("Total: %s\n", size);
+                }
+            } else {
+                System.out.printf("Shown: %s to %s, more available\n", offset + 1, iter.getPosition());
             }
-            System.out.printf("%-40s%s\n", "--------------------", "--------------------");
-            System.out.printf("Total: %s\n", iter.getSize());
         } catch (RepositoryException e) {
             e.printStackTrace();
+        } finally {
+            JcrWrapper.returnWorkerSession(worker);
         }
         return true;
 
     }
+
+    private boolean morePages() {
+        String answer = Terminal.readLine("-- more: <enter> next page, q quit --");
+        return answer != null && !answer.trim().toLowerCase().startsWith("q");
+    }
+
+    /**
+     * List the child nodes sorted on name, primary type or a property. All child nodes are read
+     * once; the sort spills to temporary files when the folder is too big for the heap, the top
+     * n listing only keeps n entries.
+     */
+    private void listSorted(final NodeIterator iter, final String sortKey, final boolean reverse, final int top,
+            final long offset, final long limit, final long page) throws RepositoryException {
+        Comparator<SortEntry> order = SortEntry.ORDER;
+        if (reverse) {
+            order = Collections.reverseOrder(order);
+        }
+        List<SortEntry> topEntries = null;
+        ExternalSorter<SortEntry> sorter = null;
+        try {
+            if (top > 0) {
+                // keep the n first entries in a heap with the last of them on top
+                PriorityQueue<SortEntry> heap = new PriorityQueue<SortEntry>(top + 1, Collections.reverseOrder(order));
+                while (iter.hasNext()) {
+                    heap.add(SortEntry.create(iter.nextNode(), sortKey));
+                    if (heap.size() > top) {
+                        heap.poll();
+                    }
+                }
+                topEntries = new ArrayList<SortEntry>(heap);
+                Collections.sort(topEntries, order);
+            } else {
+                sorter = new ExternalSorter<SortEntry>(order, SortEntry.CODEC, ExternalSorter.DEFAULT_RUN_SIZE);
+                while (iter.hasNext()) {
+                    sorter.add(SortEntry.create(iter.nextNode(), sortKey));
+                }
+            }
+
+            System.out.printf("%-40s%-25s%s\n", "Name", "Type", sortKey);
+            System.out.printf("%-40s%-25s%s\n", "--------------------", "--------------------", "----------");
+            long position = 0;
+            long shown = 0;
+            long pageRows = 0;
+            Iterator<SortEntry> topIter = (topEntries == null) ? null : topEntries.iterator();
+            while (limit < 0 || shown < limit) {
+                SortEntry entry;
+                if (topIter != null) {
+                    entry = topIter.hasNext() ? topIter.next() : null;
+                } else {
+                    entry = sorter.next();
+                }
+                if (entry == null) {
+                    break;
+                }
+                if (position++ < offset) {
+                    continue;
+                }
+                if (page > 0 && pageRows == page) {
+                    if (!morePages()) {
+                        break;
+                    }
+                    pageRows = 0;
+                }
+                System.out.printf("%-40s%-25s%s\n", entry.name, entry.type, (entry.key == null) ? "" : entry.key);
+                shown++;
+                pageRows++;
+            }
+            System.out.printf("%-40s%-25s%s\n", "--------------------", "--------------------", "----------");
+            System.out.printf("Total: %s\n", iter.getPosition());
+            if (sorter != null && sorter.getRuns() > 0) {
+                System.out.printf("Sorted in %s runs on disk\n", sorter.getRuns());
+            }
+        } catch (IOException e) {
+            System.out.println("Sort failed: " + e.getMessage());
+        } finally {
+            if (sorter != null) {
+                sorter.close();
+            }
+        }
+    }
+
+    private void printHeader(final boolean longFormat) {
+        if (longFormat) {
+            System.out.printf("%-40s%-25s%10s%8s  %-17s%s\n", "Name", "Type", "Children", "Props", "Modified",
+                    "Mixins");
+        } else {
+            System.out.printf("%-40s%s\n", "Name", "Type");
+        }
+        printSeparator(longFormat);
+    }
+
+    private void printSeparator(final boolean longFormat) {
+        if (longFormat) {
+            System.out.printf("%-40s%-25s%10s%8s  %-17s%s\n", "--------------------", "--------------------",
+                    "--------", "------", "----------------", "----------");
+        } else {
+            System.out.printf("%-40s%s\n", "--------------------", "--------------------");
+        }
+    }
+
+    private void printLong(final NodeMetadata metadata) {
+        String modified = "";
+        if (metadata.getLastModified() != null) {
+            modified = String.format("%1$tF %1$tR", metadata.getLastModified());
+        }
+        System.out.printf("%-40s%-25s%10d%8d  %-17s%s\n", metadata.getName(), metadata.getPrimaryType(), metadata
+                .getChildCount(), metadata.getPropertyCount(), modified, metadata.getMixins());
+    }
+
+    /**
+     * Print the number of child nodes. Uses the size of the iterator when the repository
+     * knows it, otherwise skips through the child nodes without printing them.
+     * @param iter the child nodes
+     */
+    private void printCount(final NodeIterator iter) {
+        long size = iter.getSize();
+        if (size >= 0) {
+            System.out.printf("Total: %s\n", size);
+            return;
+        }
+        while (iter.hasNext()) {
+            iter.skip(1);
+        }
+        System.out.printf("Total: %s\n", iter.getPosition());
+    }
+
+    /**
+     * Child node with its sort key. Numbers and dates are compared by value, everything
+     * else as strings. Nodes without the property sort last.
+     */
+    private static final class SortEntry {
+        private static final int MISSING = 0;
+        private static final int NUMBER = 1;
+        private static final int STRING = 2;
+        /** maximum length of a string key, longer values are truncated. */
+        private static final int MAX_KEY_LENGTH = 4096;
+
+        private static final Comparator<SortEntry> ORDER = new Comparator<SortEntry>() {
+            public int compare(final SortEntry e1, final SortEntry e2) {
+                if (e1.kind != e2.kind) {
+                    return (e1.kind == MISSING) ? 1 : (e2.kind == MISSING) ? -1 : e1.kind - e2.kind;
+                }
+                int result = 0;
+                if (e1.kind == NUMBER) {
+                    result = Double.compare(e1.number, e2.number);
+                } else if (e1.kind == STRING) {
+                    result = e1.key.compareTo(e2.key);
+                }
+                return (result != 0) ? result : e1.name.compareTo(e2.name);
+            }
+        };
+
+        private static final ExternalSorter.Codec<SortEntry> CODEC = new ExternalSorter.Codec<SortEntry>() {
+            public void write(final DataOutput out, final SortEntry entry) throws IOException {
+                out.writeUTF(entry.name);
+                out.writeUTF(entry.type);
+                out.writeByte(entry.kind);
+                out.writeDouble(entry.number);
+                out.writeUTF((entry.key == null) ? "" : entry.key);
+            }
+
+            public SortEntry read(final DataInput in) throws IOException {
+                String name = in.readUTF();
+                String type = in.readUTF();
+                int kind = in.readByte();
+                double number = in.readDouble();
+                String key = in.readUTF();
+                return new SortEntry(name, type, kind, number, (kind == MISSING) ? null : key);
+            }
+        };
+
+        private final String name;
+        private final String type;
+        private final int kind;
+        private final double number;
+        private final String key;
+
+        private SortEntry(final String name, final String type, final int kind, final double number,
+                final String key) {
+            this.name = name;
+            this.type = type;
+            this.kind = kind;
+            this.number = number;
+            this.key = key;
+        }
+
+        private static SortEntry create(final Node node, final String sortKey) throws RepositoryException {
+            String name = JcrWrapper.fullName(node);
+            String type = node.getProperty("jcr:primaryType").getString();
+            if ("name".equals(sortKey)) {
+                return new SortEntry(name, type, STRING, 0, truncate(name));
+            }
+            if ("type".equals(sortKey)) {
+                return new SortEntry(name, type, STRING, 0, type);
+            }
+            if (!node.hasProperty(sortKey)) {
+                return new SortEntry(name, type, MISSING, 0, null);
+            }
+            Property p = node.getProperty(sortKey);
+            if (p.isMultiple()) {
+                Value[] values = p.getValues();
+                if (values.length == 0) {
+                    return new SortEntry(name, type, MISSING, 0, null);
+                }
+                return create(name, type, values[0]);
+            }
+            return create(name, type, p.getValue());
+        }
+
+        private static SortEntry create(final String name, final String type, final Value value)
+                throws RepositoryException {
+            switch (value.getType()) {
+            case PropertyType.LONG:
+                return new SortEntry(name, type, NUMBER, value.getLong(), value.getString());
+            case PropertyType.DOUBLE:
+            case PropertyType.DECIMAL:
+                return new SortEntry(name, type, NUMBER, value.getDouble(), value.getString());
+            case PropertyType.DATE:
+                return new SortEntry(name, type, NUMBER, value.getDate().getTimeInMillis(), value.getString());
+            case PropertyType.BINARY:
+                return new SortEntry(name, type, MISSING, 0, null);
+            default:
+                return new SortEntry(name, type, STRING, 0, truncate(value.getString()));
+            }
+        }
+
+        private static String truncate(final String key) {
+            return (key.length() > MAX_KEY_LENGTH) ? key.substring(0, MAX_KEY_LENGTH) : key;
+        }
+    }
 }
@@ -15,6 +15,9 @@
  */
 package org.hippoecm.tools.cli.commands;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jcr.ItemExistsException;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -46,21 +49,32 @@ public class NodeMove implements Command {
      * {@inheritDoc}
      */
     public final String usage() {
-        return "nodemove <nnodeame> [<path>/]<new nodename>";
+        return "nodemove [--workspace] <nnodeame> [<path>/]<new nodename>";
     }
 
     /**
      * {@inheritDoc}
      */
     public final String help() {
-        return "nodemv node target: move/rename node to target";
+        return "nodemv node target: move/rename node to target. With --workspace the repository moves the "
+                + "subtree in one call and the move is saved immediately, the subtree is not loaded into the session. "
+                + "The session must not have unsaved changes";
     }
 
     /**
      * {@inheritDoc}
      */
     public final boolean execute(final String[] args) {
-        if (args.length != 3) {
+        boolean workspace = false;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            if ("--workspace".equals(args[i])) {
+                workspace = true;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2) {
             System.out.println(help());
             return false;
         }
@@ -70,8 +84,8 @@ public class NodeMove implements Command {
             return false;
         }
 
-        String src = args[1];
-        String dest = args[2];
+        String src = paths.get(0);
+        String dest = paths.get(1);
 
         // tab completion slash
         if (src.endsWith("/")) {
@@ -101,11 +115,23 @@ public class NodeMove implements Command {
                 }
             }
             try {
-                JcrWrapper.moveNode(srcNode, dest);
+                if (workspace) {
+                    if (node.getSession().hasPendingChanges()) {
+                        System.out.println("The session has unsaved changes, save or refresh first");
+                        return false;
+                    }
+                    JcrWrapper.workspaceMove(srcNode.getPath(), dest);
+                    System.out.println("Node moved to " + dest);
+                } else {
+                    JcrWrapper.moveNode(srcNode, dest);
+                }
             } catch (ItemExistsException e) {
                 System.out.println("Target already exists: " + dest);
             } catch (PathNotFoundException e) {
                 System.out.println("Target not found: " + dest);
+            } catch (RepositoryException e) {
+                System.out.println("Failed to move node: " + e.getMessage());
+                return false;
             }
         } catch (RepositoryException e1) {
             e1.printStackTrace();
@@ -115,4 +141,22 @@ public class NodeMove implements Command {
 
     }
 
+    /**
+     * Make a path absolute.
+     * @param current the current node
+     * @param path an absolute path or a path relative to the current node
+     * @return the absolute path, without a trailing slash
+     * @throws RepositoryException when the path of the current node can not be read
+     */
+    static String absolutePath(final Node current, final String path) throws RepositoryException {
+        String abs = path;
+        // tab completion slash
+        if (abs.length() > 1 && abs.endsWith("/")) {
+            abs = abs.substring(0, abs.length() - 1);
+        }
+        if (!abs.startsWith("/")) {
+            abs = "/".equals(current.getPath()) ? "/" + abs : current.getPath() + "/" + abs;
+        }
+        return abs;
+    }
 }
@@ -15,17 +15,26 @@
  */
 package org.hippoecm.tools.cli.commands;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeDefinition;
 
 import org.hippoecm.tools.cli.Command;
 import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.Terminal;
 
 /**
  * Remove child node.
  */
 public class NodeRemove implements Command {
 
+    /** interval between progress lines. */
+    private static final long PROGRESS_MILLIS = 2000;
+
     /**
      * {@inheritDoc}
      */
@@ -44,14 +53,16 @@ public class NodeRemove implements Command {
      * {@inheritDoc}
      */
     public final String usage() {
-        return "noderemove <nodename>";
+        return "noderemove [--chunked <batch> [--rate <nodes/s>]] <nodename> [<nodename> ...]";
     }
 
     /**
      * {@inheritDoc}
      */
     public final String help() {
-        return "noderm node [,node,[..]]: delete child nodes from the current node";
+        return "noderm node [,node,[..]]: delete child nodes from the current node. With --chunked the "
+                + "subtree is deleted bottom-up and saved every <batch> nodes, at most --rate nodes per second. "
+                + "An interrupted chunked delete continues where it stopped when run again";
     }
 
     /**
@@ -63,12 +74,59 @@ public class NodeRemove implements Command {
             return false;
         }
 
+        int first = 1;
+        int batch = 0;
+        double rate = 0;
+        try {
+            while (first < args.length && args[first].startsWith("--")) {
+                if ("--chunked".equals(args[first]) && first + 1 < args.length) {
+                    batch = Integer.parseInt(args[++first]);
+                } else if ("--rate".equals(args[first]) && first + 1 < args.length) {
+                    rate = Double.parseDouble(args[++first]);
+                } else {
+                    System.out.println(usage());
+                    System.out.println(help());
+                    return false;
+                }
+                first++;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (first >= args.length) {
+            System.out.println(help());
+            return false;
+        }
+
         Node node = JcrWrapper.getCurrentNode();
         if (node == null) {
             return false;
         }
 
-        for (int i = 1; i < args.length; i++) {
+        if (batch > 0) {
+            try {
+                if (node.getSession().hasPendingChanges()) {
+                    System.out.println("The session has unsaved changes, save or refresh first");
+                    return false;
+                }
+                for (int i = first; i < args.length; i++) {
+                    if (!node.hasNode(args[i])) {
+                        System.out.println("Node doesn't have a child node with name: " + args[i]);
+                    } else if (!removeChunked(node.getNode(args[i]), batch, rate)) {
+                        return false;
+                    }
+                }
+            } catch (RepositoryException e) {
+                System.out.println("Failed to remove node: " + e.getMessage());
+                return false;
+            } finally {
+                JcrWrapper.clearCaches();
+            }
+            return true;
+        }
+
+        for (int i = first; i < args.length; i++) {
             try {
                 final String nodeName = args[i];
                 if (!node.hasNode(nodeName)) {
@@ -77,6 +135,7 @@ public class NodeRemove implements Command {
                 }
                 if (JcrWrapper.removeNode(node.getNode(nodeName))) {
                     System.out.println("Node '" + nodeName + "' removed.");
+                    JcrWrapper.changed(nodeName.length());
                 } else {
                     System.out.println("Failed to remove node: " + nodeName);
                 }
@@ -90,4 +149,80 @@ public class NodeRemove implements Command {
 
     }
 
+    /**
+     * Remove a subtree bottom-up, saving after every chunk. Every chunk starts again from the
+     * root of the subtree, so a run that stopped is continued by running it again.
+     */
+    private boolean removeChunked(final Node root, final int batch, final double rate) throws RepositoryException {
+        String path = root.getPath();
+        long start = System.currentTimeMillis();
+        long nextProgress = start + PROGRESS_MILLIS;
+        long removed = 0;
+        boolean done = false;
+        List<Node> chunk = new ArrayList<Node>(batch);
+        while (!done) {
+            chunk.clear();
+            try {
+                done = collect(root, chunk, batch, true);
+                for (Node node : chunk) {
+                    node.remove();
+                }
+                JcrWrapper.saveChanges();
+            } catch (RepositoryException e) {
+                // drop the removals of the partial chunk, they must not be saved by a later save
+                root.getSession().refresh(false);
+                System.out.println("Failed to remove chunk: " + e.getMessage());
+                System.out.println("Removed " + removed + " nodes of " + path + ", run again to continue");
+                return false;
+            }
+            removed += chunk.size();
+
+            long now = System.currentTimeMillis();
+            if (rate > 0) {
+                long wait = start + (long) (removed * 1000 / rate) - now;
+                if (wait > 0 && !done) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        System.out.println("Interrupted, removed " + removed + " nodes of " + path
+                                + ", run again to continue");
+                        return false;
+                    }
+                    now = System.currentTimeMillis();
+                }
+            }
+            if (now >= nextProgress && !done) {
+                Terminal.println(String.format("Removed %d nodes, %.0f nodes/s", removed,
+                        removed * 1000.0 / Math.max(1, now - start)));
+                nextProgress = now + PROGRESS_MILLIS;
+            }
+        }
+        System.out.printf("Node '%s' removed: %d nodes in %d ms\n", root.getName(), removed,
+                System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * Collect at most max nodes of a subtree, children before their parent. Mandatory and
+     * protected nodes below the root are not collected, they are removed with their parent.
+     * @return true when the node is collected with all its descendants
+     */
+    private static boolean collect(final Node node, final List<Node> chunk, final int max, final boolean root)
+            throws RepositoryException {
+        NodeIterator iter = node.getNodes();
+        while (iter.hasNext()) {
+            if (chunk.size() >= max || !collect(iter.nextNode(), chunk, max, false)) {
+                return false;
+            }
+        }
+        if (chunk.size() >= max) {
+            return false;
+        }
+        NodeDefinition def = node.getDefinition();
+        if (root || !(def.isMandatory() || def.isProtected())) {
+            chunk.add(node);
+        }
+        return true;
+    }
 }
@@ -98,6 +98,7 @@ public class PropAdd implements Command {
 
                 //TODO, shouldn't be handling cache inside command, move to JcrWrapper
                 JcrWrapper.removeFromCache(node.getPath());
+                JcrWrapper.changed(propName.length());
 
             } catch (ValueFormatException e) {
                 System.out.println("Unable to create value: " + e.getMessage());
@@ -80,6 +80,7 @@ public class PropDelete implements Command {
 
                 //TODO, shouldn't be handling cache inside command, move to JcrWrapper
                 JcrWrapper.removeFromCache(node.getPath());
+                JcrWrapper.changed(propName.length());
             } catch (RepositoryException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -109,6 +109,7 @@ public class PropSet implements Command {
 
                 //TODO, shouldn't be handling cache inside command, move to JcrWrapper
                 JcrWrapper.removeFromCache(node.getPath());
+                JcrWrapper.changed(propName.length() + propValue.length());
 
             } catch (ValueFormatException e) {
                 System.out.println("Unable to create value: " + e.getMessage());
@@ -0,0 +1,318 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.HyperLogLog;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+
+/**
+ * Show the number of values, distinct values and value sizes per property name in a subtree.
+ */
+public class PropStats implements Command {
+
+    /** number of size buckets, bucket i holds the sizes with bit length i. */
+    private static final int BUCKETS = 64;
+
+    /** sort orders. */
+    private static final String[] SORTS = new String[] { "name", "values", "distinct", "bytes" };
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "propstats";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] {};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "propstats [-p <property pattern>] [--sort name|values|distinct|bytes] [-t <threads>] [<path>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "show per property name the number of values, the estimated distinct values and the value sizes. "
+                + "Sizes are characters, or bytes for binaries, percentiles are rounded up to a power of two";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String propertyPattern = null;
+        String sort = "name";
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-p".equals(args[i]) && i + 1 < args.length) {
+                    propertyPattern = args[++i];
+                } else if ("--sort".equals(args[i]) && i + 1 < args.length) {
+                    sort = args[++i].toLowerCase();
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        int sortIndex = -1;
+        for (int i = 0; i < SORTS.length; i++) {
+            if (SORTS[i].equals(sort)) {
+                sortIndex = i;
+            }
+        }
+        if (sortIndex < 0) {
+            System.out.println("Unknown sort: " + sort);
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+
+        final String namePattern = propertyPattern;
+        ParallelWalker<Collector> walker = new ParallelWalker<Collector>(
+                new ParallelWalker.VisitorFactory<Collector>() {
+                    public Collector newVisitor(final String path) {
+                        return new Collector(namePattern);
+                    }
+                }, threads, 1);
+
+        final Map<String, Stats> total = new HashMap<String, Stats>();
+        try {
+            // merge every partition when it is done, so only one sketch per property is kept
+            walker.walk(node, new ParallelWalker.Merger<Collector>() {
+                public void merge(final String path, final Collector collector) {
+                    for (Map.Entry<String, Stats> entry : collector.stats.entrySet()) {
+                        Stats stats = total.get(entry.getKey());
+                        if (stats == null) {
+                            total.put(entry.getKey(), entry.getValue());
+                        } else {
+                            stats.merge(entry.getValue());
+                        }
+                    }
+                }
+            });
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+
+        print(total, sortIndex);
+        if (walker.getErrors() > 0) {
+            System.out.println("Errors: " + walker.getErrors());
+        }
+        return true;
+    }
+
+    private void print(final Map<String, Stats> total, final int sortIndex) {
+        List<Stats> list = new ArrayList<Stats>(total.values());
+        Collections.sort(list, new Comparator<Stats>() {
+            public int compare(final Stats s1, final Stats s2) {
+                long v1;
+                long v2;
+                switch (sortIndex) {
+                case 1:
+                    v1 = s1.values;
+                    v2 = s2.values;
+                    break;
+                case 2:
+                    v1 = s1.distinct();
+                    v2 = s2.distinct();
+                    break;
+                case 3:
+                    v1 = s1.bytes;
+                    v2 = s2.bytes;
+                    break;
+                default:
+                    return s1.name.compareTo(s2.name);
+                }
+                if (v1 != v2) {
+                    return (v1 > v2) ? -1 : 1;
+                }
+                return s1.name.compareTo(s2.name);
+            }
+        });
+        String format = "%-40s%12s%12s%12s%14s%8s%8s%8s%12s\n";
+        System.out.printf(format, "Property", "Properties", "Values", "Distinct", "Size", "p50", "p90", "p99", "Max");
+        System.out.printf(format, "--------------------", "----------", "----------", "----------", "------------",
+                "------", "------", "------", "----------");
+        for (Stats s : list) {
+            long distinct = s.distinct();
+            System.out.printf(format, s.name, s.properties, s.values, (distinct < 0) ? "-" : String
+                    .valueOf(distinct), s.bytes, s.percentile(0.5), s.percentile(0.9), s.percentile(0.99), s.max);
+        }
+    }
+
+    /**
+     * Counters and sketches of one property name. The memory used does not depend on the number of values.
+     */
+    private static final class Stats {
+        private final String name;
+        private long properties;
+        private long values;
+        private long bytes;
+        private long max;
+        private final long[] sizes = new long[BUCKETS];
+        private HyperLogLog distinct;
+
+        private Stats(final String name) {
+            this.name = name;
+        }
+
+        private void add(final Property p) throws RepositoryException {
+            properties++;
+            boolean binary = p.getType() == PropertyType.BINARY;
+            if (binary) {
+                long[] lengths = p.isMultiple() ? p.getLengths() : new long[] { p.getLength() };
+                for (long length : lengths) {
+                    addSize(length);
+                }
+                return;
+            }
+            if (distinct == null) {
+                distinct = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+            }
+            if (p.isMultiple()) {
+                for (Value value : p.getValues()) {
+                    addValue(value.getString());
+                }
+            } else {
+                addValue(p.getString());
+            }
+        }
+
+        private void addValue(final String value) {
+            distinct.add(value);
+            addSize(value.length());
+        }
+
+        private void addSize(final long size) {
+            values++;
+            if (size < 0) {
+                return;
+            }
+            bytes += size;
+            if (size > max) {
+                max = size;
+            }
+            sizes[64 - Long.numberOfLeadingZeros(size)]++;
+        }
+
+        /**
+         * Upper bound of the bucket holding the percentile.
+         */
+        private long percentile(final double fraction) {
+            long total = 0;
+            for (long count : sizes) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                seen += sizes[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, (i == 0) ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Estimated distinct values, -1 when only binary values were seen.
+         */
+        private long distinct() {
+            return (distinct == null) ? -1 : distinct.estimate();
+        }
+
+        private void merge(final Stats other) {
+            properties += other.properties;
+            values += other.values;
+            bytes += other.bytes;
+            max = Math.max(max, other.max);
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] += other.sizes[i];
+            }
+            if (other.distinct != null) {
+                if (distinct == null) {
+                    distinct = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+                }
+                distinct.merge(other.distinct);
+            }
+        }
+    }
+
+    /**
+     * Statistics of a partition of the walk.
+     */
+    private static final class Collector implements ParallelWalker.Visitor {
+        private final String namePattern;
+        private final Map<String, Stats> stats = new HashMap<String, Stats>();
+
+        private Collector(final String namePattern) {
+            this.namePattern = namePattern;
+        }
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            PropertyIterator iter = (namePattern == null) ? node.getProperties() : node.getProperties(namePattern);
+            while (iter.hasNext()) {
+                Property p = iter.nextProperty();
+                Stats s = stats.get(p.getName());
+                if (s == null) {
+                    s = new Stats(p.getName());
+                    stats.put(p.getName(), s);
+                }
+                s.add(p);
+            }
+            return true;
+        }
+    }
+}
@@ -15,19 +15,37 @@
  */
 package org.hippoecm.tools.cli.commands;
 
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 
 import org.hippoecm.tools.cli.Command;
 import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.QueryCache;
 
 /**
  * Run a query.
  */
 public class Query implements Command {
 
+    /** number of rows over which the column widths are computed. */
+    private static final int WINDOW = 100;
+
+    /** maximum width of a column, longer values are cut off. */
+    private static final int MAX_WIDTH = 60;
+
+    /** the last page shown with a limit, continued by 'next'. */
+    private static Page lastPage;
+
     /**
      * {@inheritDoc}
      */
@@ -46,69 +64,579 @@ public class Query implements Command {
      * {@inheritDoc}
      */
     public final String usage() {
-        return "query <sql|xpath> <statement>";
+        return "query [-c <column,...>] [--offset <n>] [--limit <n>] [--count] [--no-cache] "
+                + "[--format <csv|json> [--out <file>] [--gzip]] "
+                + "[--profile [--runs <n>] [--resolve] [--rebase]] [--batch <n>] [--dry-run] "
+                + "[--workspaces <name,...>] [--servers <url,...>] "
+                + "<sql2|sql|xpath> <statement> [update set <property>=<value> | addmixin <mixin> | remove] "
+                + "| query save <name> [<sql2|sql|xpath>] <statement> | query run <name> [<var>[:<type>]=<value> ...] "
+                + "| query unsave <name> | query saved";
     }
 
     /**
      * {@inheritDoc}
      */
     public final String help() {
-        return "run a query statement. Language can be xpath or sql.";
+        return "run a query statement. Language can be sql2 (JCR-SQL2), sql or xpath. Prints the columns of the "
+                + "result rows, by default all selected columns for sql2 and jcr:path otherwise. "
+                + "With --limit the repository returns one page, 'next' shows the following page. "
+                + "--count only prints the number of results. --profile times execute, first row and fetching "
+                + "over --runs runs and compares with the baseline of the statement, --resolve also resolves "
+                + "the nodes, --rebase replaces the baseline. Results are cached until a change in the scope "
+                + "of the query is observed, --no-cache runs the query anyway. "
+                + "--format writes all rows as csv or json to --out or the console, values typed by their "
+                + "property type, --gzip compresses the output (also when the file name ends with .gz). "
+                + "An update clause sets a property, adds a mixin or removes every node found, saving every "
+                + "--batch changes (default " + QueryUpdate.DEFAULT_BATCH + "), --dry-run only counts the nodes. "
+                + "--workspaces and --servers run the statement on every workspace of every server at the same "
+                + "time and print the rows labelled by origin as they arrive, followed by the timings per origin. "
+                + "'query save' keeps a statement with $variables under a name, 'query run' binds the variables "
+                + "and runs it, 'query saved' lists the saved statements with their last timing";
     }
 
     /**
      * {@inheritDoc}
      */
     public final boolean execute(final String[] args) {
-        if (args.length < 4) {
-            System.out.println(help());
-            return false;
-        }
         String language;
-        StringBuffer query = new StringBuffer();
+        String[] columns = null;
+        long offset = 0;
+        long limit = 0;
+        boolean countOnly = false;
+        boolean profile = false;
+        int runs = 1;
+        boolean resolve = false;
+        boolean rebase = false;
+        boolean useCache = true;
+        String format = null;
+        String out = null;
+        boolean gzip = false;
+        int batch = QueryUpdate.DEFAULT_BATCH;
+        boolean dryRun = false;
+        String[] workspaces = null;
+        String[] servers = null;
+        List<String> statement = new ArrayList<String>();
 
         if ("select".equals(args[0])) {
-            language = "sql";
+            language = language("sql");
             for (int i = 0; i < args.length; i++) {
-                query.append(args[i]).append(" ");
+                statement.add(args[i]);
             }
         } else {
-            language = args[1].toLowerCase();
-            if (!"xpath".equals(language) && !"sql".equals(language)) {
-                System.out.println("Unknown query language: " + language);
+            int i = 1;
+            try {
+                while (i < args.length && args[i].startsWith("-")) {
+                    if ("-c".equals(args[i]) && i + 1 < args.length) {
+                        columns = args[++i].split(",");
+                    } else if ("--offset".equals(args[i]) && i + 1 < args.length) {
+                        offset = Long.parseLong(args[++i]);
+                    } else if ("--limit".equals(args[i]) && i + 1 < args.length) {
+                        limit = Long.parseLong(args[++i]);
+                    } else if ("--count".equals(args[i])) {
+                        countOnly = true;
+                    } else if ("--profile".equals(args[i])) {
+                        profile = true;
+                    } else if ("--runs".equals(args[i]) && i + 1 < args.length) {
+                        runs = Integer.parseInt(args[++i]);
+                        profile = true;
+                    } else if ("--resolve".equals(args[i])) {
+                        resolve = true;
+                    } else if ("--rebase".equals(args[i])) {
+                        rebase = true;
+                    } else if ("--no-cache".equals(args[i])) {
+                        useCache = false;
+                    } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+                        format = args[++i].toLowerCase();
+                    } else if ("--out".equals(args[i]) && i + 1 < args.length) {
+                        out = args[++i];
+                    } else if ("--gzip".equals(args[i])) {
+                        gzip = true;
+                    } else if ("--batch".equals(args[i]) && i + 1 < args.length) {
+                        batch = Integer.parseInt(args[++i]);
+                    } else if ("--dry-run".equals(args[i])) {
+                        dryRun = true;
+                    } else if ("--workspaces".equals(args[i]) && i + 1 < args.length) {
+                        workspaces = args[++i].split(",");
+                    } else if ("--servers".equals(args[i]) && i + 1 < args.length) {
+                        servers = args[++i].split(",");
+                    } else {
+                        System.out.println("Unknown option: " + args[i]);
+                        return false;
+                    }
+                    i++;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Not a number: " + e.getMessage());
+                return false;
+            }
+            if (i < args.length && "saved".equals(args[i])) {
+                return SavedQueries.list();
+            } else if (i + 1 < args.length && "unsave".equals(args[i])) {
+                return SavedQueries.remove(args[i + 1]);
+            } else if (i + 1 < args.length && "run".equals(args[i])) {
+                return SavedQueries.run(args[i + 1], Arrays.asList(args).subList(i + 2, args.length), columns);
+            } else if (i + 2 < args.length && "save".equals(args[i])) {
+                return save(args, i + 1);
+            }
+            if (i + 1 >= args.length) {
+                System.out.println(usage());
+                System.out.println(help());
                 return false;
             }
-            for (int i = 2; i < args.length; i++) {
-                query.append(args[i]).append(" ");
+            if (format != null && !"csv".equals(format) && !"json".equals(format)) {
+                System.out.println("Unknown format: " + format);
+                return false;
+            }
+            if (format == null && (out != null || gzip)) {
+                System.out.println("Use --format with --out or --gzip");
+                return false;
+            }
+            language = language(args[i]);
+            if (language == null) {
+                System.out.println("Unknown query language: " + args[i]);
+                return false;
+            }
+            for (i++; i < args.length; i++) {
+                statement.add(args[i]);
             }
         }
 
-        NodeIterator iter = null;
+        QueryUpdate update = null;
+        for (int i = statement.size() - 1; i > 0 && update == null; i--) {
+            if (QueryUpdate.isClause(statement, i)) {
+                update = QueryUpdate.parse(statement.subList(i + 1, statement.size()));
+                if (update == null) {
+                    System.out.println("Invalid update, use: update set <property>=<value> | addmixin <mixin> "
+                            + "| remove");
+                    return false;
+                }
+                statement = statement.subList(0, i);
+            }
+        }
+        StringBuffer query = new StringBuffer();
+        for (String arg : statement) {
+            query.append(arg).append(" ");
+        }
+
+        Page page = new Page(query.toString(), language, columns, offset, limit, useCache);
+        if (update != null) {
+            return update(page, update, batch, dryRun);
+        }
+        if (workspaces != null || servers != null) {
+            return fanOut(page, servers, workspaces);
+        }
+        if (countOnly) {
+            return count(page);
+        }
+        if (profile) {
+            return profile(page, runs, resolve, rebase);
+        }
+        if (format != null) {
+            return export(page, format, out, gzip || (out != null && out.endsWith(".gz")));
+        }
+        return run(page);
+    }
+
+    /**
+     * Show the page following the last page shown.
+     * @return true when the page was shown
+     */
+    static boolean next() {
+        Page page = lastPage;
+        if (page == null || page.limit <= 0) {
+            System.out.println("No query with --limit to continue");
+            return false;
+        }
+        return run(new Page(page.statement, page.language, page.columns, page.offset + page.limit, page.limit,
+                page.useCache));
+    }
+
+    /**
+     * Run a page of a query and print the rows, from the cache when possible.
+     */
+    private static boolean run(final Page page) {
+        QueryCache cache = JcrWrapper.getQueryCache();
+        QueryCache.Result cached = page.useCache ? cache.get(page.key()) : null;
+        long count;
+        if (cached != null) {
+            TablePrinter printer = new TablePrinter(cached.getColumns());
+            for (String[] cells : cached.getRows()) {
+                printer.add(cells);
+            }
+            count = printer.finish(cached.getSize());
+            System.out.printf("Cached result of %d s ago, use --no-cache to run the query\n",
+                    cached.getAge() / 1000);
+        } else {
+            javax.jcr.query.Query q = create(page);
+            if (q == null) {
+                return false;
+            }
+            try {
+                QueryResult result = q.execute();
+                String[] names = columns(page.columns, page.language, result);
+                List<String[]> rows = new ArrayList<String[]>();
+                TablePrinter printer = new TablePrinter(names);
+                RowIterator iter = result.getRows();
+                while (iter.hasNext()) {
+                    Row row = iter.nextRow();
+                    String[] cells = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        cells[i] = cell(row.getValue(names[i]));
+                    }
+                    printer.add(cells);
+                    if (rows != null) {
+                        rows.add(cells);
+                        if (rows.size() > QueryCache.MAX_ROWS) {
+                            rows = null;
+                        }
+                    }
+                }
+                count = printer.finish(iter.getSize());
+                if (rows != null) {
+                    cache.put(page.key(), page.statement, page.language, names, rows, iter.getSize());
+                }
+            } catch (RepositoryException e) {
+                System.out.println("Failed to run query: " + e.getMessage());
+                return false;
+            }
+        }
+        if (page.limit > 0) {
+            lastPage = page;
+            if (count > 0) {
+                System.out.printf("Rows %d-%d\n", page.offset + 1, page.offset + count);
+            }
+            if (count == page.limit) {
+                System.out.println("Type 'next' for the following " + page.limit + " rows");
+            }
+        } else {
+            lastPage = null;
+        }
+        return true;
+    }
+
+    /**
+     * Save the statement following the name, in sql2 unless a language is given.
+     */
+    private static boolean save(final String[] args, final int nameIndex) {
+        int i = nameIndex + 1;
+        String language = language(args[i]);
+        if (language != null) {
+            i++;
+        } else {
+            language = javax.jcr.query.Query.JCR_SQL2;
+        }
+        if (i >= args.length) {
+            System.out.println("Missing statement");
+            return false;
+        }
+        StringBuffer query = new StringBuffer();
+        for (; i < args.length; i++) {
+            query.append(args[i]).append(" ");
+        }
+        return SavedQueries.save(args[nameIndex], query.toString(), language);
+    }
+
+    private static boolean fanOut(final Page page, final String[] servers, final String[] workspaces) {
         try {
-            iter = JcrWrapper.query(query.toString(), language);
-        } catch (InvalidQueryException e1) {
-            System.out.println("Invalid query: " + query.toString());
+            return new QueryFanOut(servers, workspaces).run(page.statement, page.language, page.columns,
+                    page.offset, page.limit);
+        } catch (RepositoryException e) {
+            System.out.println("Failed to run query: " + e.getMessage());
             return false;
         }
+    }
 
-        if (iter == null) {
-            System.out.println("Failed to run query: " + query.toString());
+    private static boolean update(final Page page, final QueryUpdate update, final int batch,
+            final boolean dryRun) {
+        javax.jcr.query.Query q = create(page);
+        if (q == null) {
+            return false;
+        }
+        try {
+            return update.run(q, batch, dryRun);
+        } catch (RepositoryException e) {
+            System.out.println("Failed to run query: " + e.getMessage());
             return false;
         }
+    }
 
+    /**
+     * Write all rows of a page as they are read, nothing is cached or held.
+     */
+    private static boolean export(final Page page, final String format, final String file, final boolean gzip) {
+        javax.jcr.query.Query q = create(page);
+        if (q == null) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        long count = 0;
+        RowWriter writer = null;
         try {
-            System.out.printf("%-30s%-30s\n", "Name", "Path");
-            System.out.printf("%-30s%-30s\n", "--------------------", "--------------------");
+            QueryResult result = q.execute();
+            String[] names = columns(page.columns, page.language, result);
+            writer = RowWriter.create(format, file, gzip, names);
+            RowIterator iter = result.getRows();
+            Value[] values = new Value[names.length];
             while (iter.hasNext()) {
-                Node n = iter.nextNode();
-                System.out.printf("%-30s%-30s\n", JcrWrapper.fullName(n), n.getPath());
+                Row row = iter.nextRow();
+                for (int i = 0; i < names.length; i++) {
+                    values[i] = row.getValue(names[i]);
+                }
+                writer.write(values);
+                count++;
             }
-            System.out.printf("%-30s%-30s\n", "--------------------", "--------------------");
-            System.out.printf("Total: %s\n", iter.getSize());
+            writer.close();
+            writer = null;
         } catch (RepositoryException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            System.out.println("Failed to run query: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            System.out.println("Failed to write " + ((file != null) ? file : "rows") + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // already reported
+                }
+            }
+        }
+        if (file != null) {
+            System.out.printf("Rows written to %s: %d in %d ms\n", file, count, System.currentTimeMillis() - start);
         }
         return true;
     }
+
+    /**
+     * The columns to show: the requested ones, all selected columns for sql2, the path otherwise.
+     */
+    static String[] columns(final String[] columns, final String language, final QueryResult result)
+            throws RepositoryException {
+        if (columns != null) {
+            return columns;
+        } else if (javax.jcr.query.Query.JCR_SQL2.equals(language)) {
+            return result.getColumnNames();
+        }
+        return new String[] { "jcr:path" };
+    }
+
+    /**
+     * Print the number of results without reading a row. With jcr2dav the size is known once the
+     * query is executed, otherwise the rows are skipped without reading their values.
+     */
+    private static boolean count(final Page page) {
+        javax.jcr.query.Query q = create(page);
+        if (q == null) {
+            return false;
+        }
+        try {
+            RowIterator rows = q.execute().getRows();
+            long size = rows.getSize();
+            if (size < 0) {
+                size = 0;
+                while (rows.hasNext()) {
+                    rows.skip(1);
+                    size++;
+                }
+            }
+            System.out.printf("Total: %s\n", size);
+        } catch (RepositoryException e) {
+            System.out.println("Failed to run query: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean profile(final Page page, final int runs, final boolean resolve, final boolean rebase) {
+        javax.jcr.query.Query q = create(page);
+        if (q == null) {
+            return false;
+        }
+        String key = page.language + " " + page.statement.trim();
+        if (page.offset > 0 || page.limit > 0) {
+            key = key + " [" + page.offset + "," + page.limit + "]";
+        }
+        try {
+            QueryProfiler.profile(q, key, runs, resolve, rebase);
+        } catch (RepositoryException e) {
+            System.out.println("Failed to run query: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static javax.jcr.query.Query create(final Page page) {
+        javax.jcr.query.Query q;
+        try {
+            q = JcrWrapper.createQuery(page.statement, page.language);
+        } catch (InvalidQueryException e) {
+            System.out.println("Invalid query: " + e.getMessage());
+            return null;
+        }
+        if (q == null) {
+            System.out.println("Failed to run query: " + page.statement);
+            return null;
+        }
+        if (page.offset > 0) {
+            q.setOffset(page.offset);
+        }
+        if (page.limit > 0) {
+            q.setLimit(page.limit);
+        }
+        return q;
+    }
+
+    /**
+     * Map the language argument to a query language.
+     * @param name the argument
+     * @return the language or null when unknown
+     */
+    @SuppressWarnings("deprecation")
+    static String language(final String name) {
+        String lower = name.toLowerCase();
+        if ("sql2".equals(lower) || "jcr-sql2".equals(lower)) {
+            return javax.jcr.query.Query.JCR_SQL2;
+        } else if ("sql".equals(lower)) {
+            return javax.jcr.query.Query.SQL;
+        } else if ("xpath".equals(lower)) {
+            return javax.jcr.query.Query.XPATH;
+        }
+        return null;
+    }
+
+    /**
+     * Printable value of a cell, binaries are not read.
+     */
+    static String cell(final Value value) throws RepositoryException {
+        if (value == null) {
+            return "";
+        }
+        if (value.getType() == PropertyType.BINARY) {
+            return "<binary>";
+        }
+        return value.getString().replace('\n', ' ');
+    }
+
+    /**
+     * A statement with the columns and the range of rows to show.
+     */
+    private static final class Page {
+        private final String statement;
+        private final String language;
+        private final String[] columns;
+        private final long offset;
+        private final long limit;
+        private final boolean useCache;
+
+        private Page(final String statement, final String language, final String[] columns, final long offset,
+                final long limit, final boolean useCache) {
+            this.statement = statement;
+            this.language = language;
+            this.columns = columns;
+            this.offset = offset;
+            this.limit = limit;
+            this.useCache = useCache;
+        }
+
+        /**
+         * Key of the page in the query cache.
+         */
+        private String key() {
+            StringBuilder buf = new StringBuilder(language).append('\n').append(statement.trim()).append('\n');
+            buf.append(offset).append(',').append(limit);
+            if (columns != null) {
+                for (String column : columns) {
+                    buf.append('\n').append(column);
+                }
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Prints rows per window. The column widths are computed over the rows of a window and
+     * only grow, so at most one window of rows is held.
+     */
+    static final class TablePrinter {
+        private final String[] names;
+        private final int[] widths;
+        private final List<String[]> window = new ArrayList<String[]>(WINDOW);
+        private boolean header = true;
+        private long count;
+
+        TablePrinter(final String[] names) {
+            this.names = names;
+            this.widths = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                widths[i] = Math.min(MAX_WIDTH, Math.max(names[i].length(), 10));
+            }
+        }
+
+        void add(final String[] cells) {
+            for (int i = 0; i < cells.length; i++) {
+                widths[i] = Math.max(widths[i], Math.min(MAX_WIDTH, cells[i].length()));
+            }
+            window.add(cells);
+            count++;
+            if (window.size() == WINDOW) {
+                printWindow();
+            }
+        }
+
+        /**
+         * Print the last window and the total.
+         * @param size the size reported by the result, -1 if unknown
+         * @return the number of rows printed
+         */
+        long finish(final long size) {
+            if (header || !window.isEmpty()) {
+                printWindow();
+            }
+            printLine(separator());
+            System.out.printf("Total: %s\n", (size >= 0) ? size : count);
+            return count;
+        }
+
+        private void printWindow() {
+            if (header) {
+                printLine(names);
+                printLine(separator());
+                header = false;
+            }
+            for (String[] cells : window) {
+                printLine(cells);
+            }
+            window.clear();
+        }
+
+        private void printLine(final String[] cells) {
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < cells.length; i++) {
+                String cell = cells[i];
+                if (cell.length() > widths[i]) {
+                    cell = cell.substring(0, widths[i] - 3) + "...";
+                }
+                buf.append(cell);
+                if (i < cells.length - 1) {
+                    for (int pad = cell.length(); pad < widths[i] + 2; pad++) {
+                        buf.append(' ');
+                    }
+                }
+            }
+            System.out.println(buf.toString());
+        }
+
+        private String[] separator() {
+            String[] line = new String[widths.length];
+            for (int i = 0; i < widths.length; i++) {
+                StringBuilder buf = new StringBuilder();
+                for (int j = 0; j < widths[i]; j++) {
+                    buf.append('-');
+                }
+                line[i] = buf.toString();
+            }
+            return line;
+        }
+    }
 }
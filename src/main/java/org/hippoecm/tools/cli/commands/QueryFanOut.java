@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.hippoecm.tools.cli.JcrWrapper;
+
+/**
+ * Run a statement on several workspaces and servers at the same time, with a session and a
+ * thread per target. The rows are printed as they arrive from any target, labelled by origin,
+ * followed by the timings per target. The queue between the targets and the printer is
+ * bounded, so a fast target waits for the printer instead of filling the memory.
+ */
+final class QueryFanOut {
+
+    /** maximum number of rows waiting to be printed. */
+    private static final int QUEUE_SIZE = 1000;
+
+    private final List<Target> targets = new ArrayList<Target>();
+
+    /**
+     * Create the targets: every workspace on every server. Without servers the workspaces of
+     * the current server are used, without workspaces the workspace of the shell session.
+     * @param servers the server urls or null
+     * @param workspaces the workspace names or null
+     * @throws RepositoryException when not connected
+     */
+    QueryFanOut(final String[] servers, final String[] workspaces) throws RepositoryException {
+        String[] names = workspaces;
+        if (names == null) {
+            Node current = JcrWrapper.getCurrentNode();
+            if (current == null) {
+                throw new RepositoryException("Not connected");
+            }
+            names = new String[] { current.getSession().getWorkspace().getName() };
+        }
+        if (servers == null) {
+            for (String workspace : names) {
+                targets.add(new Target(workspace, null, workspace));
+            }
+        } else {
+            for (String server : servers) {
+                for (String workspace : names) {
+                    String label = (workspaces == null) ? server : server + " " + workspace;
+                    targets.add(new Target(label, server, workspace));
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the statement on all targets and print the merged rows.
+     * @param statement the statement
+     * @param language the language
+     * @param columns the columns to show or null for the default columns
+     * @param offset the offset per target
+     * @param limit the limit per target, 0 for no limit
+     * @return true when the query succeeded on all targets
+     */
+    boolean run(final String statement, final String language, final String[] columns, final long offset,
+            final long limit) {
+        final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>(QUEUE_SIZE);
+        List<Thread> threads = new ArrayList<Thread>(targets.size());
+        for (final Target target : targets) {
+            Thread t = new Thread("query-" + target.label) {
+                public void run() {
+                    target.run(statement, language, columns, offset, limit, queue);
+                }
+            };
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+
+        Query.TablePrinter printer = null;
+        long count = 0;
+        int running = targets.size();
+        try {
+            while (running > 0) {
+                Message message = queue.take();
+                if (message.cells == null) {
+                    running--;
+                    continue;
+                }
+                if (printer == null) {
+                    printer = new Query.TablePrinter(labelled("origin", message.names));
+                }
+                printer.add(labelled(message.target.label, message.cells));
+                count++;
+            }
+        } catch (InterruptedException e) {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (printer == null) {
+            printer = new Query.TablePrinter(labelled("origin", (columns != null) ? columns
+                    : new String[] { "jcr:path" }));
+        }
+        printer.finish(count);
+        return printTimings();
+    }
+
+    private boolean printTimings() {
+        boolean success = true;
+        System.out.println();
+        System.out.printf("%-40s%10s%14s%12s\n", "Origin", "Rows", "Execute (ms)", "Total (ms)");
+        for (Target target : targets) {
+            if (target.error != null) {
+                System.out.printf("%-40s failed: %s\n", target.label, target.error);
+                success = false;
+            } else {
+                System.out.printf("%-40s%10d%14d%12d\n", target.label, target.rows, target.executeMillis,
+                        target.totalMillis);
+            }
+        }
+        return success;
+    }
+
+    private static String[] labelled(final String label, final String[] cells) {
+        String[] line = new String[cells.length + 1];
+        line[0] = label;
+        System.arraycopy(cells, 0, line, 1, cells.length);
+        return line;
+    }
+
+    /**
+     * A row of a target, or the end of a target when the cells are null.
+     */
+    private static final class Message {
+        private final Target target;
+        private final String[] names;
+        private final String[] cells;
+
+        private Message(final Target target, final String[] names, final String[] cells) {
+            this.target = target;
+            this.names = names;
+            this.cells = cells;
+        }
+    }
+
+    /**
+     * A workspace on a server. The results are only read after the end message is taken from
+     * the queue.
+     */
+    private static final class Target {
+        private final String label;
+        private final String server;
+        private final String workspace;
+        private long rows;
+        private long executeMillis;
+        private long totalMillis;
+        private String error;
+
+        private Target(final String label, final String server, final String workspace) {
+            this.label = label;
+            this.server = server;
+            this.workspace = workspace;
+        }
+
+        private void run(final String statement, final String language, final String[] columns, final long offset,
+                final long limit, final LinkedBlockingQueue<Message> queue) {
+            long start = System.currentTimeMillis();
+            boolean interrupted = false;
+            Session session = null;
+            try {
+                session = (server == null) ? JcrWrapper.openSession(workspace)
+                        : JcrWrapper.openSession(server, workspace);
+                if (session == null) {
+                    throw new RepositoryException("Not connected");
+                }
+                javax.jcr.query.Query q = session.getWorkspace().getQueryManager().createQuery(statement, language);
+                if (offset > 0) {
+                    q.setOffset(offset);
+                }
+                if (limit > 0) {
+                    q.setLimit(limit);
+                }
+                long executeStart = System.currentTimeMillis();
+                QueryResult result = q.execute();
+                executeMillis = System.currentTimeMillis() - executeStart;
+                String[] names = Query.columns(columns, language, result);
+                RowIterator iter = result.getRows();
+                while (iter.hasNext()) {
+                    Row row = iter.nextRow();
+                    String[] cells = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        cells[i] = Query.cell(row.getValue(names[i]));
+                    }
+                    queue.put(new Message(this, names, cells));
+                    rows++;
+                }
+            } catch (InterruptedException e) {
+                // the printer is gone, it does not wait for the end message
+                error = "interrupted";
+                interrupted = true;
+            } catch (Exception e) {
+                error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            } finally {
+                try {
+                    if (session != null) {
+                        session.logout();
+                    }
+                } finally {
+                    totalMillis = System.currentTimeMillis() - start;
+                    if (!interrupted) {
+                        end(queue);
+                    }
+                }
+            }
+        }
+
+        private void end(final LinkedBlockingQueue<Message> queue) {
+            try {
+                queue.put(new Message(this, null, null));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
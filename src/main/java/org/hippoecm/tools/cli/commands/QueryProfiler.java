@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.hippoecm.tools.cli.JcrWrapper;
+
+/**
+ * Time the phases of a query: execute, first row and iterating over the rows, optionally
+ * resolving the node of every row. Baselines per statement are kept in a file in the
+ * user's home directory.
+ */
+final class QueryProfiler {
+
+    /** baseline file in the user's home directory. */
+    private static final String BASELINE_FILE = ".javaterm-baselines";
+
+    /** a run slower than the baseline times this factor is a regression. */
+    private static final double REGRESSION_FACTOR = 1.5;
+
+    /** differences below this many milliseconds are never a regression. */
+    private static final double REGRESSION_MIN_MILLIS = 5;
+
+    private final long[] execute;
+    private final long[] firstRow;
+    private final long[] total;
+    private final long[] resolve;
+    private final long[] remoteCalls;
+    private long rows;
+    private long size;
+
+    private QueryProfiler(final int runs) {
+        execute = new long[runs];
+        firstRow = new long[runs];
+        total = new long[runs];
+        resolve = new long[runs];
+        remoteCalls = new long[runs];
+    }
+
+    /**
+     * Run the query a number of times and print the timings.
+     * @param q the query
+     * @param key the baseline key
+     * @param runs the number of runs
+     * @param resolveNodes also resolve the node of every row
+     * @param rebase replace the baseline with this run
+     * @throws RepositoryException when the query fails
+     */
+    static void profile(final javax.jcr.query.Query q, final String key, final int runs,
+            final boolean resolveNodes, final boolean rebase) throws RepositoryException {
+        QueryProfiler profiler = new QueryProfiler(Math.max(1, runs));
+        for (int run = 0; run < profiler.total.length; run++) {
+            profiler.run(q, run, resolveNodes);
+        }
+        profiler.print(resolveNodes);
+        profiler.compare(key, rebase);
+    }
+
+    private void run(final javax.jcr.query.Query q, final int run, final boolean resolveNodes)
+            throws RepositoryException {
+        long calls = JcrWrapper.getRemoteCalls();
+        long start = System.nanoTime();
+        QueryResult result = q.execute();
+        execute[run] = System.nanoTime() - start;
+        RowIterator iter = result.getRows();
+        long count = 0;
+        long resolving = 0;
+        while (iter.hasNext()) {
+            Row row = iter.nextRow();
+            row.getValues();
+            if (resolveNodes) {
+                long resolveStart = System.nanoTime();
+                row.getNode();
+                resolving += System.nanoTime() - resolveStart;
+            }
+            if (count == 0) {
+                firstRow[run] = System.nanoTime() - start;
+            }
+            count++;
+        }
+        total[run] = System.nanoTime() - start;
+        if (count == 0) {
+            firstRow[run] = total[run];
+        }
+        resolve[run] = resolving;
+        remoteCalls[run] = JcrWrapper.getRemoteCalls() - calls;
+        rows = count;
+        size = iter.getSize();
+    }
+
+    private void print(final boolean resolveNodes) {
+        int runs = total.length;
+        System.out.printf("%-20s%12s%12s%12s\n", "Phase (ms)", "p50", "p90", "max");
+        System.out.printf("%-20s%12s%12s%12s\n", "----------------", "----------", "----------", "----------");
+        printPhase("execute", execute);
+        printPhase("first row", firstRow);
+        long[] fetch = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            fetch[i] = total[i] - execute[i] - resolve[i];
+        }
+        printPhase("fetch rows", fetch);
+        if (resolveNodes) {
+            printPhase("resolve nodes", resolve);
+        }
+        printPhase("total", total);
+        System.out.printf("%-20s%12s%12s%12s\n", "----------------", "----------", "----------", "----------");
+        double fetchSeconds = percentile(fetch, 0.5) / 1e9;
+        System.out.printf("Runs: %d, rows: %d, result size: %d, rows/s while fetching: %.0f\n", runs, rows, size,
+                (fetchSeconds > 0) ? rows / fetchSeconds : 0.0);
+        System.out.printf("Remote requests per run: %d (p50), %d (max)\n", percentile(remoteCalls, 0.5),
+                percentile(remoteCalls, 1.0));
+    }
+
+    private void printPhase(final String name, final long[] nanos) {
+        System.out.printf("%-20s%12.1f%12.1f%12.1f\n", name, percentile(nanos, 0.5) / 1e6,
+                percentile(nanos, 0.9) / 1e6, percentile(nanos, 1.0) / 1e6);
+    }
+
+    /**
+     * Compare the median total time with the baseline of the statement. The first run of a
+     * statement becomes its baseline.
+     */
+    private void compare(final String key, final boolean rebase) {
+        File file = new File(System.getProperty("user.home"), BASELINE_FILE);
+        Properties baselines = new Properties();
+        try {
+            if (file.exists()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    baselines.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read baselines: " + e.getMessage());
+            return;
+        }
+
+        double millis = percentile(total, 0.5) / 1e6;
+        String baseline = baselines.getProperty(key);
+        if (baseline != null && !rebase) {
+            try {
+                double baseMillis = Double.parseDouble(baseline.split(" ")[0]);
+                if (millis > baseMillis * REGRESSION_FACTOR && millis - baseMillis > REGRESSION_MIN_MILLIS) {
+                    System.out.printf("REGRESSION: p50 %.1f ms, baseline %.1f ms\n", millis, baseMillis);
+                } else {
+                    System.out.printf("Baseline: p50 %.1f ms, now %.1f ms\n", baseMillis, millis);
+                }
+                return;
+            } catch (NumberFormatException e) {
+                System.out.println("Replacing invalid baseline: " + baseline);
+            }
+        }
+
+        baselines.setProperty(key, String.format(Locale.US, "%.3f %d", millis, rows));
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                baselines.store(out, "query baselines: p50 total ms and rows");
+            } finally {
+                out.close();
+            }
+            System.out.printf("Baseline saved: p50 %.1f ms\n", millis);
+        } catch (IOException e) {
+            System.out.println("Unable to save baseline: " + e.getMessage());
+        }
+    }
+
+    private static long percentile(final long[] values, final double fraction) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
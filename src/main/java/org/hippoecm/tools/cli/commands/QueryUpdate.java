@@ -0,0 +1,291 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.Terminal;
+
+/**
+ * Change every node found by a query: set a property, add a mixin or remove the node. The
+ * changes are saved every batch, so the transient space never holds more than one batch. When
+ * the save of a batch fails, its nodes are changed and saved one by one to find the failing
+ * ones, the other nodes of the batch are kept.
+ */
+final class QueryUpdate {
+
+    /** default number of changes per save. */
+    static final int DEFAULT_BATCH = 100;
+
+    /** interval between progress lines. */
+    private static final long PROGRESS_MILLIS = 2000;
+
+    /** number of paths shown by a dry run. */
+    private static final int DRY_RUN_PATHS = 10;
+
+    private static final int SET = 0;
+    private static final int ADD_MIXIN = 1;
+    private static final int REMOVE = 2;
+
+    private final int action;
+    private final String name;
+    private final String value;
+    private int changed;
+    private int unchanged;
+    private int failed;
+
+    private QueryUpdate(final int action, final String name, final String value) {
+        this.action = action;
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * Parse an update clause.
+     * @param args the arguments following 'update'
+     * @return the update or null when the clause is invalid
+     */
+    static QueryUpdate parse(final List<String> args) {
+        if (args.isEmpty()) {
+            return null;
+        }
+        String verb = args.get(0).toLowerCase();
+        if ("remove".equals(verb) && args.size() == 1) {
+            return new QueryUpdate(REMOVE, null, null);
+        } else if ("addmixin".equals(verb) && args.size() == 2) {
+            return new QueryUpdate(ADD_MIXIN, args.get(1), null);
+        } else if ("set".equals(verb) && args.size() > 1) {
+            StringBuilder buf = new StringBuilder();
+            for (String arg : args.subList(1, args.size())) {
+                buf.append((buf.length() > 0) ? " " : "").append(arg);
+            }
+            int eq = buf.indexOf("=");
+            if (eq > 0) {
+                return new QueryUpdate(SET, buf.substring(0, eq).trim(), buf.substring(eq + 1).trim());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if an argument starts an update clause.
+     * @param args the statement arguments
+     * @param index the index of the argument
+     * @return true when the argument is 'update' followed by set, addmixin or remove
+     */
+    static boolean isClause(final List<String> args, final int index) {
+        if (!"update".equalsIgnoreCase(args.get(index)) || index + 1 >= args.size()) {
+            return false;
+        }
+        String verb = args.get(index + 1).toLowerCase();
+        return "set".equals(verb) || "addmixin".equals(verb) || "remove".equals(verb);
+    }
+
+    /**
+     * Change the nodes found by a query.
+     * @param q the query
+     * @param batch the number of changes per save
+     * @param dryRun only count the nodes
+     * @return true when all nodes were changed
+     * @throws RepositoryException when the query fails
+     */
+    boolean run(final javax.jcr.query.Query q, final int batch, final boolean dryRun) throws RepositoryException {
+        Node current = JcrWrapper.getCurrentNode();
+        if (current == null) {
+            return false;
+        }
+        Session session = current.getSession();
+        if (!dryRun && session.hasPendingChanges()) {
+            System.out.println("The session has unsaved changes, save or refresh first");
+            return false;
+        }
+
+        // only the identifiers and paths are held, so nodes do not stay in the transient space
+        List<String[]> nodes = new ArrayList<String[]>();
+        NodeIterator iter = q.execute().getNodes();
+        while (iter.hasNext()) {
+            Node node = iter.nextNode();
+            nodes.add(new String[] { node.getIdentifier(), node.getPath() });
+        }
+        if (action == REMOVE) {
+            nodes = removalRoots(nodes);
+        }
+
+        if (dryRun) {
+            System.out.println("Nodes to " + describe() + ": " + nodes.size());
+            for (String[] node : nodes.subList(0, Math.min(DRY_RUN_PATHS, nodes.size()))) {
+                System.out.println("  " + node[1]);
+            }
+            if (nodes.size() > DRY_RUN_PATHS) {
+                System.out.println("  ...");
+            }
+            return true;
+        }
+
+        long start = System.currentTimeMillis();
+        long nextProgress = start + PROGRESS_MILLIS;
+        int size = Math.max(1, batch);
+        for (int from = 0; from < nodes.size(); from += size) {
+            List<String[]> chunk = nodes.subList(from, Math.min(nodes.size(), from + size));
+            int before = changed;
+            int failedBefore = failed;
+            int unchangedBefore = unchanged;
+            for (String[] node : chunk) {
+                apply(session, node[0], node[1]);
+            }
+            if (changed > before) {
+                try {
+                    JcrWrapper.saveChanges();
+                } catch (RepositoryException e) {
+                    System.out.println("Failed to save batch " + (from / size + 1) + ": " + e.getMessage()
+                            + ", retrying its nodes one by one");
+                    session.refresh(false);
+                    changed = before;
+                    failed = failedBefore;
+                    unchanged = unchangedBefore;
+                    retry(session, chunk);
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextProgress) {
+                Terminal.println(String.format("Processed %d of %d, changed: %d, failed: %d",
+                        Math.min(nodes.size(), from + size), nodes.size(), changed, failed));
+                nextProgress = now + PROGRESS_MILLIS;
+            }
+        }
+        JcrWrapper.clearCaches();
+        System.out.printf("Changed: %d, unchanged: %d, failed: %d, in %d ms\n", changed, unchanged, failed,
+                System.currentTimeMillis() - start);
+        return failed == 0;
+    }
+
+    private void retry(final Session session, final List<String[]> chunk) throws RepositoryException {
+        for (String[] node : chunk) {
+            int before = changed;
+            apply(session, node[0], node[1]);
+            if (changed > before) {
+                try {
+                    JcrWrapper.saveChanges();
+                } catch (RepositoryException e) {
+                    System.out.println("Failed: " + node[1] + ": " + e.getMessage());
+                    session.refresh(false);
+                    changed--;
+                    failed++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Change a node in the transient space, failures are reported and counted.
+     */
+    private void apply(final Session session, final String id, final String path) {
+        try {
+            Node node;
+            try {
+                node = session.getNodeByIdentifier(id);
+            } catch (ItemNotFoundException e) {
+                System.out.println("Failed: " + path + ": no longer exists");
+                failed++;
+                return;
+            }
+            switch (action) {
+            case SET:
+                int type = PropertyType.STRING;
+                if (node.hasProperty(name)) {
+                    Property p = node.getProperty(name);
+                    if (p.isMultiple()) {
+                        System.out.println("Failed: " + path + ": " + name + " is a multi value property");
+                        failed++;
+                        return;
+                    }
+                    if (value.equals(p.getString())) {
+                        unchanged++;
+                        return;
+                    }
+                    type = p.getType();
+                }
+                node.setProperty(name, session.getValueFactory().createValue(value, type));
+                break;
+            case ADD_MIXIN:
+                if (node.isNodeType(name)) {
+                    unchanged++;
+                    return;
+                }
+                node.addMixin(name);
+                break;
+            default:
+                node.remove();
+                break;
+            }
+            changed++;
+        } catch (RepositoryException e) {
+            System.out.println("Failed: " + path + ": " + e.getMessage());
+            failed++;
+        }
+    }
+
+    private String describe() {
+        switch (action) {
+        case SET:
+            return "set " + name + "=" + value;
+        case ADD_MIXIN:
+            return "add mixin " + name;
+        default:
+            return "remove";
+        }
+    }
+
+    /**
+     * Drop the nodes below other nodes to remove, they are removed with their ancestor.
+     */
+    private static List<String[]> removalRoots(final List<String[]> nodes) {
+        List<String[]> sorted = new ArrayList<String[]>(nodes);
+        Collections.sort(sorted, new Comparator<String[]>() {
+            public int compare(final String[] a, final String[] b) {
+                return a[1].length() - b[1].length();
+            }
+        });
+        Set<String> removed = new HashSet<String>();
+        List<String[]> roots = new ArrayList<String[]>();
+        for (String[] node : sorted) {
+            boolean below = false;
+            String path = node[1];
+            for (int slash = path.lastIndexOf('/'); slash > 0 && !below; slash = path.lastIndexOf('/', slash - 1)) {
+                below = removed.contains(path.substring(0, slash));
+            }
+            if (!below && !removed.contains("/")) {
+                removed.add(node[1]);
+                roots.add(node);
+            }
+        }
+        return roots;
+    }
+}
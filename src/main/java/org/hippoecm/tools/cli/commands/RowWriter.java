@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Write query rows as CSV or JSON, one row at a time. Values are written according to their
+ * property type: numbers and booleans unquoted, everything else as text. Binaries are not read.
+ */
+abstract class RowWriter {
+
+    /** size of the write buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** the output. */
+    protected final Writer out;
+
+    /** the column names. */
+    protected final String[] names;
+
+    /** the compressed stream when writing compressed to standard out, it is finished but not closed. */
+    private GZIPOutputStream console;
+
+    private final boolean close;
+
+    private RowWriter(final Writer out, final String[] names, final boolean close) {
+        this.out = out;
+        this.names = names;
+        this.close = close;
+    }
+
+    /**
+     * Create a writer.
+     * @param format csv or json
+     * @param file the output file, null for standard out
+     * @param gzip compress the output
+     * @param names the column names
+     * @return the writer or null for an unknown format
+     * @throws IOException when the file can not be opened
+     */
+    static RowWriter create(final String format, final String file, final boolean gzip, final String[] names)
+            throws IOException {
+        if (!"csv".equals(format) && !"json".equals(format)) {
+            return null;
+        }
+        OutputStream stream;
+        if (file == null) {
+            stream = System.out;
+        } else {
+            stream = Channels.newOutputStream(new FileOutputStream(file).getChannel());
+        }
+        GZIPOutputStream compressed = null;
+        if (gzip) {
+            compressed = new GZIPOutputStream(stream, BUFFER_SIZE);
+            stream = compressed;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), BUFFER_SIZE);
+        boolean close = file != null;
+        RowWriter rowWriter = "csv".equals(format) ? new Csv(writer, names, close) : new Json(writer, names, close);
+        if (!close) {
+            rowWriter.console = compressed;
+        }
+        rowWriter.start();
+        return rowWriter;
+    }
+
+    /**
+     * Write the start of the output.
+     * @throws IOException when writing fails
+     */
+    protected abstract void start() throws IOException;
+
+    /**
+     * Write a row.
+     * @param values the values of the columns, null for a missing value
+     * @throws IOException when writing fails
+     * @throws RepositoryException when reading a value fails
+     */
+    abstract void write(Value[] values) throws IOException, RepositoryException;
+
+    /**
+     * Write the end of the output.
+     * @throws IOException when writing fails
+     */
+    protected abstract void end() throws IOException;
+
+    /**
+     * Finish the output and close it, unless it is standard out.
+     * @throws IOException when writing fails
+     */
+    void close() throws IOException {
+        try {
+            end();
+        } finally {
+            if (close) {
+                out.close();
+            } else {
+                try {
+                    out.flush();
+                    if (console != null) {
+                        console.finish();
+                    }
+                } finally {
+                    System.out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a value is written unquoted.
+     */
+    protected static boolean isLiteral(final Value value) throws RepositoryException {
+        switch (value.getType()) {
+        case PropertyType.LONG:
+        case PropertyType.DECIMAL:
+        case PropertyType.BOOLEAN:
+            return true;
+        case PropertyType.DOUBLE:
+            double d = value.getDouble();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * RFC 4180 comma separated values with a header line.
+     */
+    private static final class Csv extends RowWriter {
+        private Csv(final Writer out, final String[] names, final boolean close) {
+            super(out, names, close);
+        }
+
+        protected void start() throws IOException {
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                quote(names[i]);
+            }
+            out.write("\r\n");
+        }
+
+        void write(final Value[] values) throws IOException, RepositoryException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                Value value = values[i];
+                if (value == null || value.getType() == PropertyType.BINARY) {
+                    continue;
+                }
+                if (isLiteral(value)) {
+                    out.write(value.getString());
+                } else {
+                    quote(value.getString());
+                }
+            }
+            out.write("\r\n");
+        }
+
+        protected void end() {
+        }
+
+        private void quote(final String s) throws IOException {
+            boolean needsQuotes = s.length() > 0 && (Character.isWhitespace(s.charAt(0))
+                    || Character.isWhitespace(s.charAt(s.length() - 1)));
+            for (int i = 0; i < s.length() && !needsQuotes; i++) {
+                char c = s.charAt(i);
+                needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!needsQuotes) {
+                out.write(s);
+                return;
+            }
+            out.write('"');
+            out.write(s.replace("\"", "\"\""));
+            out.write('"');
+        }
+    }
+
+    /**
+     * A JSON array with an object per row.
+     */
+    private static final class Json extends RowWriter {
+        private boolean first = true;
+
+        private Json(final Writer out, final String[] names, final boolean close) {
+            super(out, names, close);
+        }
+
+        protected void start() throws IOException {
+            out.write('[');
+        }
+
+        void write(final Value[] values) throws IOException, RepositoryException {
+            out.write(first ? "\n{" : ",\n{");
+            first = false;
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(", ");
+                }
+                string(names[i]);
+                out.write(": ");
+                Value value = values[i];
+                if (value == null || value.getType() == PropertyType.BINARY) {
+                    out.write("null");
+                } else if (isLiteral(value)) {
+                    out.write(value.getString());
+                } else {
+                    string(value.getString());
+                }
+            }
+            out.write('}');
+        }
+
+        protected void end() throws IOException {
+            out.write("\n]\n");
+        }
+
+        private void string(final String s) throws IOException {
+            out.write('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+                }
+            }
+            out.write('"');
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.hippoecm.tools.cli.JcrWrapper;
+
+/**
+ * Named statements with bind variables, kept in a file next to the history file together with
+ * the timings of their last run. A statement is parsed once per session, later runs only bind
+ * the values of its variables.
+ */
+final class SavedQueries {
+
+    /** saved queries file in the user's home directory. */
+    private static final String QUERIES_FILE = ".javaterm-queries";
+
+    /** the parsed queries of the session. */
+    private static final Map<String, javax.jcr.query.Query> PREPARED = new HashMap<String, javax.jcr.query.Query>();
+
+    /** the session the queries are parsed on. */
+    private static Session preparedSession;
+
+    private SavedQueries() {
+    }
+
+    /**
+     * Save a statement.
+     * @param name the name
+     * @param statement the statement
+     * @param language the language
+     * @return true when saved
+     */
+    static boolean save(final String name, final String statement, final String language) {
+        if (!name.matches("[\\w-]+")) {
+            System.out.println("Invalid query name: " + name);
+            return false;
+        }
+        Properties queries = load();
+        if (queries == null) {
+            return false;
+        }
+        queries.setProperty(name + ".language", language);
+        queries.setProperty(name + ".statement", statement.trim());
+        queries.remove(name + ".millis");
+        queries.remove(name + ".rows");
+        queries.remove(name + ".date");
+        synchronized (PREPARED) {
+            PREPARED.remove(name);
+        }
+        return store(queries);
+    }
+
+    /**
+     * Remove a saved statement.
+     * @param name the name
+     * @return true when removed
+     */
+    static boolean remove(final String name) {
+        Properties queries = load();
+        if (queries == null) {
+            return false;
+        }
+        if (queries.remove(name + ".statement") == null) {
+            System.out.println("No saved query: " + name);
+            return false;
+        }
+        queries.remove(name + ".language");
+        queries.remove(name + ".millis");
+        queries.remove(name + ".rows");
+        queries.remove(name + ".date");
+        synchronized (PREPARED) {
+            PREPARED.remove(name);
+        }
+        return store(queries);
+    }
+
+    /**
+     * Print the saved statements with the timings of their last run.
+     * @return true when the file was read
+     */
+    static boolean list() {
+        Properties queries = load();
+        if (queries == null) {
+            return false;
+        }
+        TreeSet<String> names = new TreeSet<String>();
+        for (Enumeration<?> keys = queries.propertyNames(); keys.hasMoreElements();) {
+            String key = (String) keys.nextElement();
+            if (key.endsWith(".statement")) {
+                names.add(key.substring(0, key.length() - ".statement".length()));
+            }
+        }
+        System.out.printf("%-20s%10s%10s  %-20s%s\n", "Name", "Last (ms)", "Rows", "Last run", "Statement");
+        for (String name : names) {
+            System.out.printf("%-20s%10s%10s  %-20s%s\n", name, queries.getProperty(name + ".millis", "-"),
+                    queries.getProperty(name + ".rows", "-"), queries.getProperty(name + ".date", "-"),
+                    queries.getProperty(name + ".statement"));
+        }
+        System.out.println("Total: " + names.size());
+        return true;
+    }
+
+    /**
+     * Run a saved statement and print the rows.
+     * @param name the name
+     * @param bindings the values of the variables as name=value or name:type=value
+     * @param columns the columns to show or null for the default columns
+     * @return true when the query ran
+     */
+    static boolean run(final String name, final List<String> bindings, final String[] columns) {
+        Properties queries = load();
+        if (queries == null) {
+            return false;
+        }
+        String statement = queries.getProperty(name + ".statement");
+        String language = queries.getProperty(name + ".language");
+        if (statement == null || language == null) {
+            System.out.println("No saved query: " + name);
+            return false;
+        }
+        Node current = JcrWrapper.getCurrentNode();
+        if (current == null) {
+            return false;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            javax.jcr.query.Query q = prepare(current.getSession(), name, statement, language);
+            if (!bind(q, bindings, current.getSession().getValueFactory())) {
+                return false;
+            }
+            QueryResult result = q.execute();
+            String[] names = Query.columns(columns, language, result);
+            Query.TablePrinter printer = new Query.TablePrinter(names);
+            RowIterator iter = result.getRows();
+            while (iter.hasNext()) {
+                Row row = iter.nextRow();
+                String[] cells = new String[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    cells[i] = Query.cell(row.getValue(names[i]));
+                }
+                printer.add(cells);
+            }
+            long rows = printer.finish(iter.getSize());
+            long millis = System.currentTimeMillis() - start;
+            System.out.printf("Time: %d ms\n", millis);
+
+            queries.setProperty(name + ".millis", Long.toString(millis));
+            queries.setProperty(name + ".rows", Long.toString(rows));
+            queries.setProperty(name + ".date", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            store(queries);
+        } catch (RepositoryException e) {
+            System.out.println("Failed to run query: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the parsed query, parsing the statement when it is not parsed on the session yet.
+     */
+    private static javax.jcr.query.Query prepare(final Session session, final String name, final String statement,
+            final String language) throws RepositoryException {
+        synchronized (PREPARED) {
+            if (session != preparedSession) {
+                PREPARED.clear();
+                preparedSession = session;
+            }
+            javax.jcr.query.Query q = PREPARED.get(name);
+            if (q == null || !statement.equals(q.getStatement())) {
+                q = session.getWorkspace().getQueryManager().createQuery(statement, language);
+                PREPARED.put(name, q);
+            }
+            return q;
+        }
+    }
+
+    /**
+     * Bind the variables of a query. Every variable needs a value.
+     */
+    private static boolean bind(final javax.jcr.query.Query q, final List<String> bindings,
+            final ValueFactory factory) throws RepositoryException {
+        Map<String, String> values = new HashMap<String, String>();
+        Map<String, Integer> types = new HashMap<String, Integer>();
+        for (String binding : bindings) {
+            int eq = binding.indexOf('=');
+            if (eq <= 0) {
+                System.out.println("Invalid binding, use <name>=<value> or <name>:<type>=<value>: " + binding);
+                return false;
+            }
+            String var = binding.substring(0, eq);
+            int type = PropertyType.STRING;
+            int colon = var.indexOf(':');
+            if (colon > 0) {
+                try {
+                    type = PropertyType.valueFromName(var.substring(colon + 1));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Unknown property type: " + var.substring(colon + 1));
+                    return false;
+                }
+                var = var.substring(0, colon);
+            }
+            if (var.startsWith("$")) {
+                var = var.substring(1);
+            }
+            values.put(var, binding.substring(eq + 1));
+            types.put(var, type);
+        }
+        for (String var : q.getBindVariableNames()) {
+            String value = values.remove(var);
+            if (value == null) {
+                System.out.println("Missing value for $" + var);
+                return false;
+            }
+            q.bindValue(var, factory.createValue(value, types.get(var)));
+        }
+        if (!values.isEmpty()) {
+            System.out.println("Unknown variables: " + values.keySet());
+            return false;
+        }
+        return true;
+    }
+
+    private static Properties load() {
+        File file = new File(System.getProperty("user.home"), QUERIES_FILE);
+        Properties queries = new Properties();
+        try {
+            if (file.exists()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    queries.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read saved queries: " + e.getMessage());
+            return null;
+        }
+        return queries;
+    }
+
+    private static boolean store(final Properties queries) {
+        File file = new File(System.getProperty("user.home"), QUERIES_FILE);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                queries.store(out, "saved queries: language, statement and last run");
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to save queries: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+
+/**
+ * Show the largest binaries, widest nodes, deepest paths and largest multi value properties of a subtree.
+ */
+public class Top implements Command {
+
+    /** default number of entries per ranking. */
+    private static final int DEFAULT_COUNT = 10;
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "top";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] {};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "top [-n <count>] [-t <threads>] [<path>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "show the largest binaries, the nodes with most children, the deepest paths "
+                + "and the largest multi value properties, default 10 of each";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        int count = DEFAULT_COUNT;
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-n".equals(args[i]) && i + 1 < args.length) {
+                    count = Integer.parseInt(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (count < 1) {
+            System.out.println("Count must be positive: " + count);
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+
+        final int size = count;
+        ParallelWalker<Ranker> walker = new ParallelWalker<Ranker>(new ParallelWalker.VisitorFactory<Ranker>() {
+            public Ranker newVisitor(final String path) {
+                return new Ranker(size);
+            }
+        }, threads, 1);
+
+        Ranker total = new Ranker(count);
+        try {
+            for (Ranker ranker : walker.walk(node).values()) {
+                total.add(ranker);
+            }
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        print("Largest binaries", "Bytes", total.binaries);
+        print("Most child nodes", "Children", total.children);
+        print("Deepest paths", "Depth", total.depths);
+        print("Largest multi value properties", "Values", total.multiValues);
+        if (walker.getErrors() > 0) {
+            System.out.println("Errors: " + walker.getErrors());
+        }
+        return true;
+    }
+
+    private void print(final String title, final String unit, final Ranking ranking) {
+        System.out.println();
+        System.out.println(title + ":");
+        System.out.printf("%16s  %s\n", unit, "Path");
+        System.out.printf("%16s  %s\n", "--------------", "--------------------");
+        for (Entry entry : ranking.sorted()) {
+            System.out.printf("%16d  %s\n", entry.value, entry.path);
+        }
+    }
+
+    /**
+     * Ranked path.
+     */
+    private static final class Entry {
+        private final long value;
+        private final String path;
+
+        private Entry(final long value, final String path) {
+            this.value = value;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The largest entries seen so far, kept in a bounded min-heap so the smallest is replaced first.
+     */
+    private static final class Ranking {
+        private static final Comparator<Entry> ASCENDING = new Comparator<Entry>() {
+            public int compare(final Entry e1, final Entry e2) {
+                return (e1.value < e2.value) ? -1 : ((e1.value == e2.value) ? 0 : 1);
+            }
+        };
+
+        private final int size;
+        private final PriorityQueue<Entry> heap;
+
+        private Ranking(final int size) {
+            this.size = size;
+            this.heap = new PriorityQueue<Entry>(size, ASCENDING);
+        }
+
+        /**
+         * Check a value before building the path of the entry.
+         */
+        private boolean accepts(final long value) {
+            return heap.size() < size || heap.peek().value < value;
+        }
+
+        private void offer(final Entry entry) {
+            if (accepts(entry.value)) {
+                if (heap.size() >= size) {
+                    heap.poll();
+                }
+                heap.add(entry);
+            }
+        }
+
+        private List<Entry> sorted() {
+            List<Entry> entries = new ArrayList<Entry>(heap);
+            Collections.sort(entries, Collections.reverseOrder(ASCENDING));
+            return entries;
+        }
+    }
+
+    /**
+     * Rankings of a partition of the walk.
+     */
+    private static final class Ranker implements ParallelWalker.Visitor {
+        private final Ranking binaries;
+        private final Ranking children;
+        private final Ranking depths;
+        private final Ranking multiValues;
+
+        private Ranker(final int size) {
+            binaries = new Ranking(size);
+            children = new Ranking(size);
+            depths = new Ranking(size);
+            multiValues = new Ranking(size);
+        }
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            if (depths.accepts(depth)) {
+                depths.offer(new Entry(depth, node.getPath()));
+            }
+            long childCount = countChildren(node);
+            if (childCount > 0 && children.accepts(childCount)) {
+                children.offer(new Entry(childCount, node.getPath()));
+            }
+            PropertyIterator iter = node.getProperties();
+            while (iter.hasNext()) {
+                Property p = iter.nextProperty();
+                if (p.isMultiple()) {
+                    long[] lengths = p.getLengths();
+                    if (multiValues.accepts(lengths.length)) {
+                        multiValues.offer(new Entry(lengths.length, p.getPath()));
+                    }
+                    if (p.getType() == PropertyType.BINARY) {
+                        for (int i = 0; i < lengths.length; i++) {
+                            if (binaries.accepts(lengths[i])) {
+                                binaries.offer(new Entry(lengths[i], p.getPath() + "[" + i + "]"));
+                            }
+                        }
+                    }
+                } else if (p.getType() == PropertyType.BINARY) {
+                    long length = p.getLength();
+                    if (binaries.accepts(length)) {
+                        binaries.offer(new Entry(length, p.getPath()));
+                    }
+                }
+            }
+            return true;
+        }
+
+        private long countChildren(final Node node) throws RepositoryException {
+            NodeIterator iter = node.getNodes();
+            long count = iter.getSize();
+            if (count < 0) {
+                count = 0;
+                while (iter.hasNext()) {
+                    iter.skip(1);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void add(final Ranker other) {
+            for (Entry entry : other.binaries.heap) {
+                binaries.offer(entry);
+            }
+            for (Entry entry : other.children.heap) {
+                children.offer(entry);
+            }
+            for (Entry entry : other.depths.heap) {
+                depths.offer(entry);
+            }
+            for (Entry entry : other.multiValues.heap) {
+                multiValues.offer(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *  Copyright 2008 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hippoecm.tools.cli.commands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.hippoecm.tools.cli.Command;
+import org.hippoecm.tools.cli.JcrWrapper;
+import org.hippoecm.tools.cli.ParallelWalker;
+import org.hippoecm.tools.cli.TreeSampler;
+
+/**
+ * Count the primary types and mixins of the nodes in a subtree.
+ */
+public class TypeStats implements Command {
+
+    /** sample key of the node count. */
+    private static final String NODES = "nodes";
+
+    /** sample key prefix of the primary types. */
+    private static final String PRIMARY_TYPE = "primary:";
+
+    /** sample key prefix of the mixins. */
+    private static final String MIXIN = "mixin:";
+
+    /** number of nodes read by each source to compare their cost in auto mode. */
+    private static final int CALIBRATION_NODES = 500;
+
+    /** Measured cost per node of the last walk, 0 when unknown. */
+    private static long walkNanosPerNode;
+
+    /** Measured cost per node of the last query, 0 when unknown. */
+    private static long queryNanosPerNode;
+
+    /** the session the costs are measured on, they are measured again after a login or server change. */
+    private static Session measuredSession;
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String getCommand() {
+        return "typestats";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String[] getAliases() {
+        return new String[] { "nodetypestats", "ntstats" };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String usage() {
+        return "typestats [-s walk|query|auto] [-t <threads>] [--sample <seconds>] [<path>]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final String help() {
+        return "count nodes per primary type and mixin in a subtree, by walking or querying. The default, auto, "
+                + "times both on the first nodes of the subtree and uses the cheaper one. "
+                + "--sample estimates the counts by random descents within the time budget";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final boolean execute(final String[] args) {
+        String source = "auto";
+        int threads = ParallelWalker.DEFAULT_WORKERS;
+        int sample = 0;
+        String path = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("-s".equals(args[i]) && i + 1 < args.length) {
+                    source = args[++i].toLowerCase();
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--sample".equals(args[i]) && i + 1 < args.length) {
+                    sample = Integer.parseInt(args[++i]);
+                } else if (path == null) {
+                    path = args[i];
+                } else {
+                    System.out.println(usage());
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (!"walk".equals(source) && !"query".equals(source) && !"auto".equals(source)) {
+            System.out.println("Unknown source: " + source);
+            return false;
+        }
+
+        Node node = JcrWrapper.getNode(path);
+        if (node == null) {
+            System.out.println("Path not found: " + path);
+            return false;
+        }
+        if (sample > 0) {
+            return sample(node, sample);
+        }
+
+        try {
+            if (node.getSession() != measuredSession) {
+                walkNanosPerNode = 0;
+                queryNanosPerNode = 0;
+                measuredSession = node.getSession();
+            }
+            boolean useQuery = "query".equals(source);
+            if ("auto".equals(source)) {
+                useQuery = supportsSql2(node) && calibrate(node) && queryNanosPerNode <= walkNanosPerNode;
+            }
+            Counts counts = null;
+            if (useQuery) {
+                try {
+                    counts = query(node, 0);
+                    System.out.println("Source: query");
+                } catch (RepositoryException e) {
+                    if (!"auto".equals(source)) {
+                        throw e;
+                    }
+                    System.out.println("Query failed, walking instead: " + e.getMessage());
+                }
+            }
+            if (counts == null) {
+                counts = walk(node, threads);
+                System.out.println("Source: walk");
+            }
+            print("Primary type", counts.primaryTypes, counts.nodes);
+            print("Mixin", counts.mixins, counts.nodes);
+            System.out.printf("Total: %s\n", counts.nodes);
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estimate the counts within a time budget.
+     */
+    private boolean sample(final Node node, final int seconds) {
+        TreeSampler sampler = new TreeSampler(node, new TreeSampler.Valuer() {
+            public void value(final Node n, final double weight, final TreeSampler s) throws RepositoryException {
+                s.add(NODES, weight);
+                s.add(PRIMARY_TYPE + n.getProperty("jcr:primaryType").getString(), weight);
+                if (n.hasProperty("jcr:mixinTypes")) {
+                    for (Value value : n.getProperty("jcr:mixinTypes").getValues()) {
+                        s.add(MIXIN + value.getString(), weight);
+                    }
+                }
+            }
+        });
+        try {
+            sampler.run(seconds * 1000L, NODES);
+        } catch (RepositoryException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        System.out.println("Source: sample of " + sampler.getProbes() + " probes, intervals are 95%");
+        printSample("Primary type", PRIMARY_TYPE, sampler);
+        printSample("Mixin", MIXIN, sampler);
+        System.out.printf("Total: %.0f +/- %.0f\n", sampler.getEstimate(NODES), sampler.getHalfWidth(NODES));
+        return true;
+    }
+
+    private boolean supportsSql2(final Node node) throws RepositoryException {
+        String[] languages = node.getSession().getWorkspace().getQueryManager().getSupportedQueryLanguages();
+        return Arrays.asList(languages).contains(javax.jcr.query.Query.JCR_SQL2);
+    }
+
+    /**
+     * Measure both sources on the first nodes of the subtree when their cost is not known yet.
+     * @return false when the query can not be used
+     */
+    private boolean calibrate(final Node node) throws RepositoryException {
+        if (walkNanosPerNode > 0 && queryNanosPerNode > 0) {
+            return true;
+        }
+        try {
+            query(node, CALIBRATION_NODES);
+        } catch (RepositoryException e) {
+            System.out.println("Query failed, walking instead: " + e.getMessage());
+            return false;
+        }
+        long start = System.nanoTime();
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(node);
+        int visited = 0;
+        Counts counts = new Counts();
+        while (!stack.isEmpty() && visited < CALIBRATION_NODES) {
+            Node n = stack.remove(stack.size() - 1);
+            counts.visit(n, 0);
+            visited++;
+            for (NodeIterator iter = n.getNodes(); iter.hasNext() && stack.size() < CALIBRATION_NODES;) {
+                stack.add(iter.nextNode());
+            }
+        }
+        walkNanosPerNode = Math.max(1, (System.nanoTime() - start) / visited);
+        if (queryNanosPerNode == 0) {
+            // an empty result, the query is cheap
+            queryNanosPerNode = 1;
+        }
+        return true;
+    }
+
+    private Counts walk(final Node node, final int threads) throws RepositoryException {
+        long start = System.nanoTime();
+        ParallelWalker<Counts> walker = new ParallelWalker<Counts>(new ParallelWalker.VisitorFactory<Counts>() {
+            public Counts newVisitor(final String path) {
+                return new Counts();
+            }
+        }, threads, 1);
+        Counts total = new Counts();
+        for (Counts counts : walker.walk(node).values()) {
+            total.add(counts);
+        }
+        if (walker.getErrors() > 0) {
+            System.out.println("Errors: " + walker.getErrors());
+        }
+        if (total.nodes > 0) {
+            walkNanosPerNode = Math.max(1, (System.nanoTime() - start) / total.nodes);
+        }
+        return total;
+    }
+
+    /**
+     * Count the types from the rows of a query, without resolving the nodes.
+     * @param limit the maximum number of rows, 0 for all
+     */
+    private Counts query(final Node node, final long limit) throws RepositoryException {
+        long start = System.nanoTime();
+        StringBuilder statement = new StringBuilder("SELECT [jcr:primaryType], [jcr:mixinTypes] FROM [nt:base] AS n");
+        if (node.getDepth() > 0) {
+            // a quoted path, names may contain brackets, quotes and same name sibling indexes
+            statement.append(" WHERE ISDESCENDANTNODE(n, '").append(node.getPath().replace("'", "''")).append("')");
+        }
+        QueryManager qm = node.getSession().getWorkspace().getQueryManager();
+        javax.jcr.query.Query q = qm.createQuery(statement.toString(), javax.jcr.query.Query.JCR_SQL2);
+        if (limit > 0) {
+            q.setLimit(limit);
+        }
+        RowIterator rows = q.execute().getRows();
+
+        Counts counts = new Counts();
+        // the query only returns the descendants
+        counts.visit(node, 0);
+        while (rows.hasNext()) {
+            Row row = rows.nextRow();
+            counts.nodes++;
+            Value primaryType = row.getValue("jcr:primaryType");
+            if (primaryType != null) {
+                counts.increment(counts.primaryTypes, primaryType.getString());
+            }
+            Value mixins = row.getValue("jcr:mixinTypes");
+            if (mixins != null) {
+                // some repositories return multi value columns as a single space separated value
+                for (String mixin : mixins.getString().split(" ")) {
+                    if (mixin.length() > 0) {
+                        counts.increment(counts.mixins, mixin);
+                    }
+                }
+            }
+        }
+        if (counts.nodes > 0) {
+            queryNanosPerNode = Math.max(1, (System.nanoTime() - start) / counts.nodes);
+        }
+        return counts;
+    }
+
+    private void print(final String title, final Map<String, long[]> counts, final long total) {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(final Map.Entry<String, long[]> e1, final Map.Entry<String, long[]> e2) {
+                long c1 = e1.getValue()[0];
+                long c2 = e2.getValue()[0];
+                if (c1 != c2) {
+                    return (c1 > c2) ? -1 : 1;
+                }
+                return e1.getKey().compareTo(e2.getKey());
+            }
+        });
+        System.out.printf("%-50s%12s%8s\n", title, "Count", "%");
+        System.out.printf("%-50s%12s%8s\n", "--------------------", "----------", "------");
+        for (Map.Entry<String, long[]> entry : entries) {
+            long count = entry.getValue()[0];
+            System.out.printf("%-50s%12d%8.2f\n", entry.getKey(), count, (total == 0) ? 0.0 : 100.0 * count / total);
+        }
+        System.out.printf("%-50s%12s%8s\n", "--------------------", "----------", "------");
+    }
+
+    private void printSample(final String title, final String prefix, final TreeSampler sampler) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : sampler.getKeys()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(final String k1, final String k2) {
+                return Double.compare(sampler.getEstimate(k2), sampler.getEstimate(k1));
+            }
+        });
+        double total = sampler.getEstimate(NODES);
+        System.out.printf("%-50s%12s%12s%8s\n", title, "Estimate", "+/-", "%");
+        System.out.printf("%-50s%12s%12s%8s\n", "--------------------", "----------", "----------", "------");
+        for (String key : keys) {
+            double estimate = sampler.getEstimate(key);
+            System.out.printf("%-50s%12.0f%12.0f%8.2f\n", key.substring(prefix.length()), estimate, sampler
+                    .getHalfWidth(key), (total == 0) ? 0.0 : 100.0 * estimate / total);
+        }
+        System.out.printf("%-50s%12s%12s%8s\n", "--------------------", "----------", "----------", "------");
+    }
+
+    /**
+     * Type counters of a partition of the walk. The counters are single element arrays
+     * so they can be incremented in place.
+     */
+    private static final class Counts implements ParallelWalker.Visitor {
+        private long nodes;
+        private final Map<String, long[]> primaryTypes = new HashMap<String, long[]>();
+        private final Map<String, long[]> mixins = new HashMap<String, long[]>();
+
+        public boolean visit(final Node node, final int depth) throws RepositoryException {
+            nodes++;
+            // read the properties directly, the node type objects are not needed
+            increment(primaryTypes, node.getProperty("jcr:primaryType").getString());
+            if (node.hasProperty("jcr:mixinTypes")) {
+                Property p = node.getProperty("jcr:mixinTypes");
+                for (Value value : p.getValues()) {
+                    increment(mixins, value.getString());
+                }
+            }
+            return true;
+        }
+
+        private void increment(final Map<String, long[]> counts, final String type) {
+            add(counts, type, 1);
+        }
+
+        private void add(final Map<String, long[]> counts, final String type, final long count) {
+            long[] counter = counts.get(type);
+            if (counter == null) {
+                counter = new long[1];
+                counts.put(type, counter);
+            }
+            counter[0] += count;
+        }
+
+        private void add(final Counts other) {
+            nodes += other.nodes;
+            for (Map.Entry<String, long[]> entry : other.primaryTypes.entrySet()) {
+                add(primaryTypes, entry.getKey(), entry.getValue()[0]);
+            }
+            for (Map.Entry<String, long[]> entry : other.mixins.entrySet()) {
+                add(mixins, entry.getKey(), entry.getValue()[0]);
+            }
+        }
+    }
+}
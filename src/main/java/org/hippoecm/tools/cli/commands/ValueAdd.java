@@ -123,6 +123,7 @@ public class ValueAdd implements Command {
             }
             //TODO, shouldn't be handling cache inside command, move to JcrWrapper
             JcrWrapper.removeFromCache(node.getPath());
+            JcrWrapper.changed(propName.length() + propValue.length());
 
         } catch (RepositoryException e) {
             // TODO Auto-generated catch block
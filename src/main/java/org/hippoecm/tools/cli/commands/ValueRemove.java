@@ -139,6 +139,7 @@ public class ValueRemove implements Command {
 
             //TODO, shouldn't be handling cache inside command, move to JcrWrapper
             JcrWrapper.removeFromCache(node.getPath());
+            JcrWrapper.changed(propName.length());
         } catch (RepositoryException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();